@@ -0,0 +1,240 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.Pipe;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for the absorb methods that take several parts or a channel: a random
+ * message split at random points across heap arrays, heap buffers, read-only
+ * buffers and direct buffers, or read from a channel, must hash exactly like
+ * {@link SHA3SHAKE#SHA3} of the whole message.
+ */
+public class AbsorbTest {
+
+    private static final int[] SUFFIXES = { 224, 256, 384, 512 };
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        //defaults
+        int iterations = 300;
+        long seed = System.nanoTime();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--iterations":
+                    if (++i < args.length) {
+                        iterations = Integer.parseInt(args[i]);
+                    }
+                    break;
+                case "--seed":
+                    if (++i < args.length) {
+                        seed = Long.parseLong(args[i]);
+                    }
+                    break;
+                case "--help":
+                    System.out.println("Usage: java AbsorbTest [--iterations n] [--seed s]\n"
+                        + "--iterations n: number of random messages (default 300)\n"
+                        + "--seed s: seed for the random data (default: time based)");
+                    return;
+            }
+        }
+
+        System.out.println("Absorb Test (seed " + seed + ")\n");
+
+        Random random = new Random(seed);
+        for (int i = 0; i < iterations; i++) {
+            int suffix = SUFFIXES[random.nextInt(SUFFIXES.length)];
+            byte[] message = new byte[random.nextInt(1500)];
+            random.nextBytes(message);
+            byte[] expected = SHA3SHAKE.SHA3(suffix, message, null);
+            String name = "SHA3-" + suffix + " case " + i + " (" + message.length + " bytes)";
+
+            int[] cuts = cuts(random, message.length);
+
+            // All parts in one call, as buffers and as arrays
+            ByteBuffer[] buffers = new ByteBuffer[cuts.length - 1];
+            byte[][] arrays = new byte[cuts.length - 1][];
+            for (int p = 0; p + 1 < cuts.length; p++) {
+                buffers[p] = buffer(random, message, cuts[p], cuts[p + 1]);
+                arrays[p] = Arrays.copyOfRange(message, cuts[p], cuts[p + 1]);
+            }
+            SHA3SHAKE sponge = sponge(suffix);
+            sponge.absorb(buffers);
+            check(name + ", buffers", expected, sponge.digest());
+            for (ByteBuffer buffer : buffers) {
+                if (buffer.hasRemaining()) {
+                    fail(name + ": a buffer was not consumed");
+                    break;
+                }
+            }
+            sponge = sponge(suffix);
+            sponge.absorb(arrays);
+            check(name + ", arrays", expected, sponge.digest());
+
+            // One call per part, mixing the single-buffer and array methods
+            sponge = sponge(suffix);
+            for (int p = 0; p + 1 < cuts.length; p++) {
+                if (random.nextBoolean()) {
+                    sponge.absorb(buffer(random, message, cuts[p], cuts[p + 1]));
+                } else {
+                    sponge.absorb(message, cuts[p], cuts[p + 1] - cuts[p]);
+                }
+            }
+            check(name + ", one call per part", expected, sponge.digest());
+
+            // A channel that returns short reads of random lengths
+            sponge = sponge(suffix);
+            long read = sponge.absorb(new ShortReadChannel(message, random));
+            if (read != message.length) {
+                fail(name + ": channel absorbed " + read + " bytes");
+            }
+            check(name + ", short reads", expected, sponge.digest());
+        }
+
+        // A file channel larger than the read buffers, read from an offset
+        Path file = Files.createTempFile("absorb", ".bin");
+        try {
+            byte[] data = new byte[1 << 20 | 12345];
+            random.nextBytes(data);
+            Files.write(file, data);
+            int skip = random.nextInt(1000);
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                channel.position(skip);
+                SHA3SHAKE sponge = sponge(256);
+                sponge.absorb(channel);
+                check("file channel", SHA3SHAKE.SHA3(256, Arrays.copyOfRange(data, skip, data.length), null),
+                        sponge.digest());
+            }
+        } finally {
+            Files.delete(file);
+        }
+
+        // Non-blocking channels would be polled in a busy loop
+        try (Pipe.SourceChannel source = Pipe.open().source()) {
+            source.configureBlocking(false);
+            sponge(256).absorb(source);
+            fail("non-blocking channel: accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Random split points from 0 to length, with empty parts allowed.
+     */
+    private static int[] cuts(Random random, int length) {
+        int[] cuts = new int[2 + random.nextInt(8)];
+        for (int c = 1; c < cuts.length - 1; c++) {
+            cuts[c] = random.nextInt(length + 1);
+        }
+        cuts[cuts.length - 1] = length;
+        Arrays.sort(cuts);
+        return cuts;
+    }
+
+    /**
+     * The bytes from..to of message in a randomly chosen kind of buffer: a
+     * heap buffer whose array has an offset, a read-only heap buffer (which
+     * hides its array) or a direct buffer. The buffer's position is not zero.
+     */
+    private static ByteBuffer buffer(Random random, byte[] message, int from, int to) {
+        int pad = random.nextInt(16);
+        ByteBuffer buffer;
+        switch (random.nextInt(3)) {
+            case 0:
+                buffer = ByteBuffer.wrap(new byte[3 + to - from + pad], 3, to - from + pad).slice();
+                break;
+            case 1:
+                buffer = ByteBuffer.allocate(to - from + pad);
+                break;
+            default:
+                buffer = ByteBuffer.allocateDirect(to - from + pad);
+                break;
+        }
+        buffer.position(pad);
+        buffer.put(message, from, to - from);
+        buffer.position(pad);
+        return buffer.capacity() > 0 && buffer.hasArray() && random.nextBoolean()
+                ? buffer.asReadOnlyBuffer() : buffer;
+    }
+
+    private static SHA3SHAKE sponge(int suffix) {
+        SHA3SHAKE sponge = new SHA3SHAKE();
+        sponge.init(suffix);
+        return sponge;
+    }
+
+    private static void check(String name, byte[] expected, byte[] actual) {
+        if (!Arrays.equals(expected, actual)) {
+            fail(name + ": digest differs from SHA3SHAKE.SHA3");
+        }
+    }
+
+    private static void fail(String message) {
+        failures++;
+        System.out.println(message);
+    }
+
+    /**
+     * A blocking channel over an array that fills at most a random number of
+     * bytes per read, so buffers are often left partly filled.
+     */
+    private static class ShortReadChannel implements ScatteringByteChannel {
+        private final byte[] data;
+        private final Random random;
+        private int pos;
+
+        ShortReadChannel(byte[] data, Random random) {
+            this.data = data;
+            this.random = random;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) {
+            if (pos == data.length) {
+                return -1;
+            }
+            int budget = 1 + random.nextInt(Math.min(data.length - pos, 500));
+            long n = 0;
+            for (int i = offset; i < offset + length && budget > 0; i++) {
+                int k = Math.min(budget, dsts[i].remaining());
+                dsts[i].put(data, pos, k);
+                pos += k;
+                budget -= k;
+                n += k;
+            }
+            return n;
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts) {
+            return read(dsts, 0, dsts.length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst) {
+            return (int) read(new ByteBuffer[] { dst });
+        }
+
+        @Override
+        public boolean isOpen() {
+            return true;
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -0,0 +1,388 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * The Container class packs many files into one encrypted container file and
+ * reads them back, either all at once or one entry at a time.
+ *
+ * Layout:
+ *
+ * <pre>
+ * "SHC1" | nonce (16) | entry 0 | entry 1 | ... | index | index offset (8) | index length (8)
+ * </pre>
+ *
+ * Every entry and the index is XORed with its own SHAKE128 keystream. The
+ * keystream of entry i is squeezed from SHAKE128(nonce || key || 0x00 || i),
+ * and the index's from SHAKE128(nonce || key || 0x01), with i as 8 big-endian
+ * bytes. The key is derived once per container, and the sponge that has
+ * absorbed the nonce and key is copied for every entry rather than rebuilt.
+ *
+ * The decrypted index starts with "IDX1" and the entry count (4 bytes), then
+ * for every entry its name length (2 bytes), UTF-8 name (relative, with '/'
+ * separators), offset (8 bytes) and length (8 bytes). All integers are
+ * big-endian. The trailer locates the index, so a single entry can be read
+ * with one seek to the index and one to the entry.
+ */
+public class Container {
+
+    private static final byte[] MAGIC = "SHC1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] INDEX_MAGIC = "IDX1".getBytes(StandardCharsets.US_ASCII);
+    private static final int NONCE_LENGTH = 16;
+    private static final int HEADER_LENGTH = MAGIC.length + NONCE_LENGTH;
+    private static final int TRAILER_LENGTH = 16;
+
+    /**
+     * Bytes encrypted per step. A multiple of the SHAKE128 rate (168 bytes), so
+     * every squeeze call continues the keystream exactly where the previous
+     * one ended.
+     */
+    private static final int CHUNK_SIZE = 168 * 390;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * A file stored in a container.
+     */
+    public static class Entry {
+        /**
+         * Path relative to the packed directory, with '/' separators.
+         */
+        public final String name;
+        public final long offset;
+        public final long length;
+
+        Entry(String name, long offset, long length) {
+            this.name = name;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private Container() {
+    }
+
+    /**
+     * Encrypt every regular file under a directory into one container. Files
+     * are encrypted in parallel, each written at its own offset. If the
+     * container itself is inside the directory, it is left out.
+     *
+     * @param dir the directory to pack
+     * @param out the container file to create
+     * @param key the container key
+     * @return the number of files packed
+     * @throws IOException if a file can't be read or the container can't be
+     *                     written
+     */
+    public static int pack(Path dir, Path out, byte[] key) throws IOException {
+        List<Path> files = new ArrayList<>();
+        List<Long> sizes = new ArrayList<>();
+        Path outFile = out.toAbsolutePath().normalize();
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                if (attrs.isRegularFile() && !isContainer(file)) {
+                    files.add(file);
+                    sizes.add(attrs.size());
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            private boolean isContainer(Path file) throws IOException {
+                return file.toAbsolutePath().normalize().equals(outFile)
+                        || (Files.exists(outFile) && Files.isSameFile(file, outFile));
+            }
+        });
+
+        byte[] nonce = new byte[NONCE_LENGTH];
+        RANDOM.nextBytes(nonce);
+        SHA3SHAKE keyed = keyedSponge(nonce, key);
+
+        // Every entry's place is known up front, so entries can be written in any order
+        Entry[] entries = new Entry[files.size()];
+        long offset = HEADER_LENGTH;
+        for (int i = 0; i < entries.length; i++) {
+            String name = dir.relativize(files.get(i)).toString().replace(dir.getFileSystem().getSeparator(), "/");
+            entries[i] = new Entry(name, offset, sizes.get(i));
+            offset += sizes.get(i);
+        }
+
+        try (FileChannel container = FileChannel.open(out, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).put(MAGIC).put(nonce);
+            writeFully(container, header.flip(), 0);
+
+            try {
+                IntStream.range(0, entries.length).parallel().forEach(i -> {
+                    try (FileChannel source = FileChannel.open(files.get(i), StandardOpenOption.READ)) {
+                        if (source.size() != entries[i].length) {
+                            throw new IOException(files.get(i) + " changed while packing");
+                        }
+                        crypt(source, 0, container, entries[i].offset, entries[i].length, entryKeystream(keyed, i));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+
+            ByteBuffer index = encodeIndex(entries);
+            xor(index.array(), 0, index.limit(), indexKeystream(keyed));
+            writeFully(container, index, offset);
+
+            ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH).putLong(offset).putLong(index.limit());
+            writeFully(container, trailer.flip(), offset + index.limit());
+        }
+        return entries.length;
+    }
+
+    /**
+     * Decrypt every entry of a container into a directory. Entries are
+     * decrypted in parallel.
+     *
+     * @param in     the container
+     * @param outDir directory to write the files to; created if needed
+     * @param key    the container key
+     * @return the number of files unpacked
+     * @throws IOException if the container is invalid, the key is wrong, or a
+     *                     file can't be written
+     */
+    public static int unpack(Path in, Path outDir, byte[] key) throws IOException {
+        try (FileChannel container = FileChannel.open(in, StandardOpenOption.READ)) {
+            SHA3SHAKE keyed = keyedSponge(readNonce(container), key);
+            Entry[] entries = readIndex(container, keyed);
+
+            Path root = outDir.toAbsolutePath().normalize();
+            Path[] targets = new Path[entries.length];
+            for (int i = 0; i < entries.length; i++) {
+                targets[i] = resolve(root, entries[i].name);
+                Files.createDirectories(targets[i].getParent());
+            }
+
+            try {
+                IntStream.range(0, entries.length).parallel().forEach(i -> {
+                    try (FileChannel target = FileChannel.open(targets[i], StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                        crypt(container, entries[i].offset, target, 0, entries[i].length, entryKeystream(keyed, i));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            return entries.length;
+        }
+    }
+
+    /**
+     * Decrypt a single entry of a container. Only the index and that entry are
+     * read.
+     *
+     * @param in   the container
+     * @param name name of the entry, as listed by {@link #list(Path, byte[])}
+     * @param out  file to write the entry to
+     * @param key  the container key
+     * @throws IOException if the container is invalid, the key is wrong, or
+     *                     there is no entry with that name
+     */
+    public static void extract(Path in, String name, Path out, byte[] key) throws IOException {
+        try (FileChannel container = FileChannel.open(in, StandardOpenOption.READ)) {
+            SHA3SHAKE keyed = keyedSponge(readNonce(container), key);
+            Entry[] entries = readIndex(container, keyed);
+            for (int i = 0; i < entries.length; i++) {
+                if (entries[i].name.equals(name)) {
+                    try (FileChannel target = FileChannel.open(out, StandardOpenOption.CREATE,
+                            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                        crypt(container, entries[i].offset, target, 0, entries[i].length, entryKeystream(keyed, i));
+                    }
+                    return;
+                }
+            }
+            throw new IOException("No entry named \"" + name + "\" in " + in);
+        }
+    }
+
+    /**
+     * @param in  the container
+     * @param key the container key
+     * @return the entries of a container, in the order they were packed
+     * @throws IOException if the container is invalid or the key is wrong
+     */
+    public static List<Entry> list(Path in, byte[] key) throws IOException {
+        try (FileChannel container = FileChannel.open(in, StandardOpenOption.READ)) {
+            SHA3SHAKE keyed = keyedSponge(readNonce(container), key);
+            return Arrays.asList(readIndex(container, keyed));
+        }
+    }
+
+    // helper functions
+
+    private static SHA3SHAKE keyedSponge(byte[] nonce, byte[] key) {
+        SHA3SHAKE sponge = new SHA3SHAKE();
+        sponge.init(128);
+        sponge.absorb(nonce);
+        sponge.absorb(key);
+        return sponge;
+    }
+
+    private static SHA3SHAKE entryKeystream(SHA3SHAKE keyed, long index) {
+        SHA3SHAKE sponge = keyed.copy();
+        sponge.absorb(ByteBuffer.allocate(9).put((byte) 0).putLong(index).array());
+        return sponge;
+    }
+
+    private static SHA3SHAKE indexKeystream(SHA3SHAKE keyed) {
+        SHA3SHAKE sponge = keyed.copy();
+        sponge.absorb(new byte[] { 1 });
+        return sponge;
+    }
+
+    /**
+     * Copy length bytes from one channel to another, XORing them with the
+     * keystream.
+     */
+    private static void crypt(FileChannel source, long sourcePosition, FileChannel target,
+            long targetPosition, long length, SHA3SHAKE keystream) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(CHUNK_SIZE, length));
+        byte[] mask = new byte[buffer.capacity()];
+        for (long done = 0; done < length;) {
+            int n = (int) Math.min(buffer.capacity(), length - done);
+            buffer.clear().limit(n);
+            readFully(source, buffer, sourcePosition + done);
+            keystream.squeeze(mask, n);
+            byte[] data = buffer.array();
+            for (int i = 0; i < n; i++) {
+                data[i] ^= mask[i];
+            }
+            writeFully(target, buffer.flip(), targetPosition + done);
+            done += n;
+        }
+    }
+
+    private static void xor(byte[] data, int pos, int len, SHA3SHAKE keystream) {
+        byte[] mask = keystream.squeeze(len);
+        for (int i = 0; i < len; i++) {
+            data[pos + i] ^= mask[i];
+        }
+    }
+
+    private static ByteBuffer encodeIndex(Entry[] entries) {
+        byte[][] names = new byte[entries.length][];
+        int size = INDEX_MAGIC.length + 4;
+        for (int i = 0; i < entries.length; i++) {
+            names[i] = entries[i].name.getBytes(StandardCharsets.UTF_8);
+            if (names[i].length > 0xFFFF) {
+                throw new IllegalArgumentException("File name too long: " + entries[i].name);
+            }
+            size += 2 + names[i].length + 16;
+        }
+
+        ByteBuffer index = ByteBuffer.allocate(size).put(INDEX_MAGIC).putInt(entries.length);
+        for (int i = 0; i < entries.length; i++) {
+            index.putShort((short) names[i].length).put(names[i]);
+            index.putLong(entries[i].offset).putLong(entries[i].length);
+        }
+        return index.flip();
+    }
+
+    private static byte[] readNonce(FileChannel container) throws IOException {
+        if (container.size() < HEADER_LENGTH + TRAILER_LENGTH) {
+            throw new IOException("Not a container: file too short");
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        readFully(container, header, 0);
+        if (!Arrays.equals(header.array(), 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IOException("Not a container: bad magic");
+        }
+        return Arrays.copyOfRange(header.array(), MAGIC.length, HEADER_LENGTH);
+    }
+
+    private static Entry[] readIndex(FileChannel container, SHA3SHAKE keyed) throws IOException {
+        long size = container.size();
+        ByteBuffer trailer = ByteBuffer.allocate(TRAILER_LENGTH);
+        readFully(container, trailer, size - TRAILER_LENGTH);
+        long indexOffset = trailer.getLong(0);
+        long indexLength = trailer.getLong(8);
+        if (indexOffset < HEADER_LENGTH || indexLength < INDEX_MAGIC.length + 4
+                || indexLength > Integer.MAX_VALUE || indexOffset + indexLength != size - TRAILER_LENGTH) {
+            throw new IOException("Corrupted container: bad trailer");
+        }
+
+        ByteBuffer index = ByteBuffer.allocate((int) indexLength);
+        readFully(container, index, indexOffset);
+        xor(index.array(), 0, index.capacity(), indexKeystream(keyed));
+        index.flip();
+        if (!Arrays.equals(index.array(), 0, INDEX_MAGIC.length, INDEX_MAGIC, 0, INDEX_MAGIC.length)) {
+            throw new IOException("Wrong passphrase or corrupted container");
+        }
+
+        try {
+            index.position(INDEX_MAGIC.length);
+            int count = index.getInt();
+            if (count < 0 || count > index.remaining() / 18) {
+                throw new IOException("Corrupted container: bad entry count");
+            }
+            Entry[] entries = new Entry[count];
+            for (int i = 0; i < entries.length; i++) {
+                byte[] name = new byte[index.getShort() & 0xFFFF];
+                index.get(name);
+                long offset = index.getLong();
+                long length = index.getLong();
+                if (offset < HEADER_LENGTH || length < 0 || offset + length > indexOffset) {
+                    throw new IOException("Corrupted container: entry " + i + " out of bounds");
+                }
+                entries[i] = new Entry(new String(name, StandardCharsets.UTF_8), offset, length);
+            }
+            return entries;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupted container: truncated index", e);
+        }
+    }
+
+    /**
+     * Resolve an entry name under the output directory, refusing names that
+     * would escape it.
+     */
+    private static Path resolve(Path root, String name) throws IOException {
+        Path target = root.resolve(name).normalize();
+        if (!target.startsWith(root) || target.equals(root)) {
+            throw new IOException("Refusing to unpack entry outside the output directory: " + name);
+        }
+        return target;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long io = SpongeStats.ioStart();
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position() - start) < 0) {
+                throw new IOException("Unexpected end of file at " + position);
+            }
+        }
+        SpongeStats.ioDone(io);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long io = SpongeStats.ioStart();
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position() - start);
+        }
+        SpongeStats.ioDone(io);
+    }
+}
@@ -0,0 +1,140 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Round-trip test for {@link Container}: a directory packed and unpacked again
+ * must come back byte for byte, single entries must extract on their own, and
+ * a wrong key or a tampered container must be rejected.
+ */
+public class ContainerTest {
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        //defaults
+        long seed = System.nanoTime();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed":
+                    if (++i < args.length) {
+                        seed = Long.parseLong(args[i]);
+                    }
+                    break;
+                case "--help":
+                    System.out.println("Usage: java ContainerTest [--seed s]\n"
+                        + "--seed s: seed for the random data (default: time based)");
+                    return;
+            }
+        }
+
+        System.out.println("Container Test (seed " + seed + ")\n");
+
+        Random random = new Random(seed);
+        Path dir = Files.createTempDirectory("container-test");
+        try {
+            Path input = dir.resolve("in");
+            // Sizes around the 168 * 390 byte crypt chunk, plus an empty file
+            int[] sizes = { 0, 1, 168, 65519, 65520, 65521, 300_000 };
+            List<String> names = new ArrayList<>();
+            for (int i = 0; i < sizes.length; i++) {
+                String name = (i % 3 == 0 ? "" : "sub" + (i % 3) + "/") + "file " + i + ".bin";
+                Path file = input.resolve(name);
+                Files.createDirectories(file.getParent());
+                byte[] data = new byte[sizes[i]];
+                random.nextBytes(data);
+                Files.write(file, data);
+                names.add(name);
+            }
+
+            byte[] key = new byte[128];
+            random.nextBytes(key);
+
+            // The container is written inside the directory being packed and
+            // must not pack itself, also when packing over an earlier copy
+            Path packed = input.resolve("packed.shc");
+            Container.pack(input, packed, key);
+            int count = Container.pack(input, packed, key);
+            if (count != sizes.length) {
+                fail("packed " + count + " files, expected " + sizes.length);
+            }
+
+            List<String> listed = Container.list(packed, key).stream()
+                    .map(entry -> entry.name).sorted().collect(Collectors.toList());
+            names.sort(null);
+            if (!listed.equals(names)) {
+                fail("listed " + listed + ", expected " + names);
+            }
+
+            Path output = dir.resolve("out");
+            Container.unpack(packed, output, key);
+            for (String name : names) {
+                if (!sameContents(input.resolve(name), output.resolve(name))) {
+                    fail("unpacked " + name + " differs");
+                }
+            }
+
+            String one = names.get(random.nextInt(names.size()));
+            Path single = dir.resolve("single.bin");
+            Container.extract(packed, one, single, key);
+            if (!sameContents(input.resolve(one), single)) {
+                fail("extracted " + one + " differs");
+            }
+
+            byte[] wrongKey = key.clone();
+            wrongKey[0] ^= 1;
+            expectFailure("unpack with a wrong key", () -> Container.unpack(packed, dir.resolve("bad"), wrongKey));
+            expectFailure("extract of a missing entry",
+                    () -> Container.extract(packed, "missing", dir.resolve("bad.bin"), key));
+
+            byte[] truncated = Arrays.copyOf(Files.readAllBytes(packed), 10);
+            Path shortFile = dir.resolve("short.shc");
+            Files.write(shortFile, truncated);
+            expectFailure("list of a truncated container", () -> Container.list(shortFile, key));
+        } finally {
+            try (Stream<Path> walk = Files.walk(dir)) {
+                for (Path path : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            }
+        }
+
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * A container operation that is expected to fail.
+     */
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    private static void expectFailure(String name, Action action) {
+        try {
+            action.run();
+            fail(name + ": succeeded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static boolean sameContents(Path a, Path b) throws IOException {
+        return Files.exists(b) && Arrays.equals(Files.readAllBytes(a), Files.readAllBytes(b));
+    }
+
+    private static void fail(String message) {
+        failures++;
+        System.out.println(message);
+    }
+}
@@ -0,0 +1,241 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * The ContentChunker class splits a stream of data into content-defined chunks
+ * and fingerprints each chunk with SHA3-256.
+ *
+ * Chunk boundaries are chosen by a Gear rolling hash over the data itself
+ * rather than by fixed offsets, so an insertion or deletion only changes the
+ * chunks around the edit. Every other chunk keeps its boundaries and its
+ * digest, which lets a deduplicating store skip the unchanged regions of a
+ * slightly edited file.
+ */
+public class ContentChunker {
+
+    /**
+     * A single chunk of the input: where it starts, how long it is and its
+     * SHA3-256 digest.
+     */
+    public static class Chunk {
+        public final long offset;
+        public final int length;
+        public final byte[] digest;
+
+        Chunk(long offset, int length, byte[] digest) {
+            this.offset = offset;
+            this.length = length;
+            this.digest = digest;
+        }
+    }
+
+    /**
+     * Default minimum chunk size in bytes.
+     */
+    public static final int DEFAULT_MIN_SIZE = 2 * 1024;
+
+    /**
+     * Default average chunk size in bytes (on top of the minimum).
+     */
+    public static final int DEFAULT_AVG_SIZE = 8 * 1024;
+
+    /**
+     * Default maximum chunk size in bytes.
+     */
+    public static final int DEFAULT_MAX_SIZE = 64 * 1024;
+
+    /**
+     * The Gear hash shifts left by one bit per byte, so after 64 bytes the
+     * hash only depends on the last 64 bytes. This is the effective window.
+     */
+    private static final int WINDOW = 64;
+
+    /**
+     * Table of 256 pseudo-random 64-bit values, one per byte value. Derived
+     * with SHAKE128 so the boundaries are the same on every run and platform.
+     */
+    private static final long[] GEAR = gearTable();
+
+    private final int minSize;
+    private final int maxSize;
+
+    /**
+     * The leading hash bits that must all be zero to cut a chunk. There are
+     * log2(avgSize) of them, so an average of 1 cuts at every position.
+     */
+    private final long mask;
+
+    /**
+     * Create a chunker with the default chunk sizes.
+     */
+    public ContentChunker() {
+        this(DEFAULT_MIN_SIZE, DEFAULT_AVG_SIZE, DEFAULT_MAX_SIZE);
+    }
+
+    /**
+     * Create a chunker with custom chunk sizes.
+     *
+     * @param minSize smallest chunk that will be cut (except for the last one)
+     * @param avgSize expected number of bytes past the minimum before a cut;
+     *                must be a power of two
+     * @param maxSize largest chunk that will be emitted
+     */
+    public ContentChunker(int minSize, int avgSize, int maxSize) {
+        if (minSize < WINDOW || maxSize < minSize) {
+            throw new IllegalArgumentException(
+                    "Chunk sizes must satisfy " + WINDOW + " <= min <= max");
+        }
+        if (avgSize <= 0 || Integer.bitCount(avgSize) != 1) {
+            throw new IllegalArgumentException("Average chunk size must be a power of two");
+        }
+        this.minSize = minSize;
+        this.maxSize = maxSize;
+        int maskBits = Integer.numberOfTrailingZeros(avgSize);
+        // A shift by 64 is a shift by 0 in Java, so no bits needs its own case
+        this.mask = maskBits == 0 ? 0 : -1L << (64 - maskBits);
+    }
+
+    /**
+     * Split the stream into chunks and hash them on the given executor.
+     * Chunks are handed to the executor as soon as their boundaries are known,
+     * and are delivered to the sink in stream order.
+     *
+     * @param in       data to be chunked (not closed by this method)
+     * @param executor pool that hashes the chunks
+     * @param sink     receives every chunk in order
+     * @throws IOException if reading the stream fails
+     */
+    public void chunk(InputStream in, ExecutorService executor, Consumer<Chunk> sink)
+            throws IOException {
+        // Bound the number of chunks held in memory while waiting to be hashed
+        int maxInFlight = 4 * Runtime.getRuntime().availableProcessors();
+        ArrayDeque<Future<Chunk>> pending = new ArrayDeque<>();
+
+        byte[] buf = new byte[Math.max(1 << 20, 4 * maxSize)];
+        int start = 0; // first byte of the current chunk
+        int end = 0; // number of valid bytes in buf
+        long offset = 0; // stream offset of buf[start]
+        boolean eof = false;
+
+        while (true) {
+            // Keep at least one maximum chunk buffered so every cut sees a full chunk
+            if (!eof && end - start < maxSize) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+                long io = SpongeStats.ioStart();
+                while (end < buf.length) {
+                    int n = in.read(buf, end, buf.length - end);
+                    if (n < 0) {
+                        eof = true;
+                        break;
+                    }
+                    end += n;
+                }
+                SpongeStats.ioDone(io);
+            }
+
+            if (start == end) {
+                break;
+            }
+
+            int length = nextBoundary(buf, start, end) - start;
+            byte[] data = Arrays.copyOfRange(buf, start, start + length);
+            long chunkOffset = offset;
+            pending.add(executor.submit(
+                    () -> new Chunk(chunkOffset, length, SHA3SHAKE.SHA3(256, data, null))));
+
+            start += length;
+            offset += length;
+
+            while (pending.size() > maxInFlight) {
+                sink.accept(await(pending.poll()));
+            }
+        }
+
+        while (!pending.isEmpty()) {
+            sink.accept(await(pending.poll()));
+        }
+    }
+
+    /**
+     * Split the stream into chunks and hash them using one thread per core.
+     *
+     * @param in data to be chunked (not closed by this method)
+     * @return all chunks in stream order
+     * @throws IOException if reading the stream fails
+     */
+    public List<Chunk> chunk(InputStream in) throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        try {
+            List<Chunk> chunks = new ArrayList<>();
+            chunk(in, executor, chunks::add);
+            return chunks;
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Find the end of the chunk that starts at {@code start}.
+     *
+     * @param buf   buffered data
+     * @param start first byte of the chunk
+     * @param end   end of the buffered data
+     * @return index one past the last byte of the chunk
+     */
+    private int nextBoundary(byte[] buf, int start, int end) {
+        int limit = Math.min(end, start + maxSize);
+        if (limit - start <= minSize) {
+            return limit;
+        }
+
+        // Hashing can start one window before the minimum cut point: the hash
+        // at the first candidate position is the same as if we had started at
+        // the beginning of the chunk.
+        long hash = 0;
+        int i = start + minSize - WINDOW;
+        for (; i < start + minSize; i++) {
+            hash = (hash << 1) + GEAR[buf[i] & 0xFF];
+        }
+        for (; i < limit; i++) {
+            hash = (hash << 1) + GEAR[buf[i] & 0xFF];
+            if ((hash & mask) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    private static Chunk await(Future<Chunk> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing chunks", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Chunk hashing failed", e.getCause());
+        }
+    }
+
+    private static long[] gearTable() {
+        byte[] bytes = SHA3SHAKE.SHAKE(128, "ContentChunker gear table".getBytes(), 256 * 8, null);
+        long[] table = new long[256];
+        for (int i = 0; i < 256; i++) {
+            for (int j = 7; j >= 0; j--) {
+                table[i] = (table[i] << 8) | (bytes[8 * i + j] & 0xFF);
+            }
+        }
+        return table;
+    }
+}
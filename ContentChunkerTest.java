@@ -0,0 +1,146 @@
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Tests for {@link ContentChunker}: chunks must be contiguous and cover the
+ * input, each digest must be the SHA3-256 of its slice, the size limits must
+ * hold, and an insertion must only change the chunks around it.
+ */
+public class ContentChunkerTest {
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        //defaults
+        long seed = System.nanoTime();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed":
+                    if (++i < args.length) {
+                        seed = Long.parseLong(args[i]);
+                    }
+                    break;
+                case "--help":
+                    System.out.println("Usage: java ContentChunkerTest [--seed s]\n"
+                        + "--seed s: seed for the random data (default: time based)");
+                    return;
+            }
+        }
+
+        System.out.println("Content Chunker Test (seed " + seed + ")\n");
+
+        Random random = new Random(seed);
+        byte[] data = new byte[2 << 20];
+        random.nextBytes(data);
+
+        ContentChunker chunker = new ContentChunker();
+        List<ContentChunker.Chunk> chunks = chunker.chunk(new ByteArrayInputStream(data));
+        checkChunks("default sizes", chunks, data, ContentChunker.DEFAULT_MIN_SIZE,
+                ContentChunker.DEFAULT_MAX_SIZE);
+
+        // Inputs shorter than the minimum are a single chunk, and no input is
+        // no chunks
+        checkChunks("short input", chunker.chunk(new ByteArrayInputStream(data, 0, 100)),
+                Arrays.copyOf(data, 100), 0, ContentChunker.DEFAULT_MAX_SIZE);
+        checkChunks("empty input", chunker.chunk(new ByteArrayInputStream(new byte[0])), new byte[0], 0, 0);
+
+        // An average of 1 cuts at the first position past the minimum
+        byte[] small = Arrays.copyOf(data, 100_000);
+        List<ContentChunker.Chunk> tiny = new ContentChunker(64, 1, 4096).chunk(new ByteArrayInputStream(small));
+        checkChunks("average 1", tiny, small, 64, 4096);
+        for (int i = 0; i < tiny.size() - 1; i++) {
+            if (tiny.get(i).length != 65) {
+                fail("average 1: chunk " + i + " is " + tiny.get(i).length + " bytes, expected 65");
+                break;
+            }
+        }
+
+        // Insert bytes in the middle: the chunks before the insertion must be
+        // unchanged, and the ones after must resynchronize within a few chunks
+        int at = data.length / 2 + random.nextInt(1000);
+        byte[] insert = new byte[1 + random.nextInt(500)];
+        random.nextBytes(insert);
+        byte[] edited = new byte[data.length + insert.length];
+        System.arraycopy(data, 0, edited, 0, at);
+        System.arraycopy(insert, 0, edited, at, insert.length);
+        System.arraycopy(data, at, edited, at + insert.length, data.length - at);
+
+        List<ContentChunker.Chunk> after = chunker.chunk(new ByteArrayInputStream(edited));
+        checkChunks("edited input", after, edited, ContentChunker.DEFAULT_MIN_SIZE, ContentChunker.DEFAULT_MAX_SIZE);
+        Set<String> digests = new HashSet<>();
+        for (ContentChunker.Chunk chunk : after) {
+            digests.add(Arrays.toString(chunk.digest));
+        }
+        int changed = 0;
+        for (ContentChunker.Chunk chunk : chunks) {
+            if (!digests.contains(Arrays.toString(chunk.digest))) {
+                changed++;
+                if (chunk.offset + chunk.length < at) {
+                    fail("insertion at " + at + " changed the chunk at " + chunk.offset);
+                }
+            }
+        }
+        if (changed == 0 || changed > 3) {
+            fail("insertion at " + at + " changed " + changed + " of " + chunks.size() + " chunks");
+        }
+
+        expectFailure("minimum below the window", () -> new ContentChunker(10, 1024, 4096));
+        expectFailure("maximum below the minimum", () -> new ContentChunker(4096, 1024, 1024));
+        expectFailure("average not a power of two", () -> new ContentChunker(64, 1000, 4096));
+        expectFailure("zero average", () -> new ContentChunker(64, 0, 4096));
+
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Chunks must follow each other without gaps, cover the whole input, stay
+     * within the size limits (the last one may be shorter than the minimum) and
+     * carry the digest of their own bytes.
+     */
+    private static void checkChunks(String name, List<ContentChunker.Chunk> chunks, byte[] data, int minSize,
+            int maxSize) {
+        long offset = 0;
+        for (int i = 0; i < chunks.size(); i++) {
+            ContentChunker.Chunk chunk = chunks.get(i);
+            if (chunk.offset != offset) {
+                fail(name + ": chunk " + i + " starts at " + chunk.offset + ", expected " + offset);
+                return;
+            }
+            boolean last = i == chunks.size() - 1;
+            if (chunk.length > maxSize || chunk.length <= 0 || (!last && chunk.length < minSize)) {
+                fail(name + ": chunk " + i + " is " + chunk.length + " bytes");
+            }
+            byte[] slice = Arrays.copyOfRange(data, (int) offset, (int) offset + chunk.length);
+            if (!Arrays.equals(SHA3SHAKE.SHA3(256, slice, null), chunk.digest)) {
+                fail(name + ": digest of chunk " + i + " differs from SHA3-256 of its bytes");
+            }
+            offset += chunk.length;
+        }
+        if (offset != data.length) {
+            fail(name + ": chunks cover " + offset + " of " + data.length + " bytes");
+        }
+    }
+
+    private static void expectFailure(String name, Runnable action) {
+        try {
+            action.run();
+            fail(name + ": accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static void fail(String message) {
+        failures++;
+        System.out.println(message);
+    }
+}
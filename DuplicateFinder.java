@@ -0,0 +1,435 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * The DuplicateFinder class finds files with identical contents under a
+ * directory.
+ *
+ * Most files can be ruled out without reading them in full:
+ *
+ * 1. Files are grouped by size; a file with a unique size has no duplicate.
+ * 2. Files that share a size get a cheap sample digest, SHA3-256 of the size,
+ *    the first 64 KiB and the last 64 KiB. Files up to 128 KiB are sampled
+ *    whole, so for them the sample is the full content digest.
+ * 3. Only larger files whose samples still collide are hashed in full.
+ *
+ * Digests are grouped with {@link DigestTable}, an open-addressing table keyed
+ * directly on the digest bytes, and hashing runs in parallel.
+ */
+public class DuplicateFinder {
+
+    /**
+     * Bytes sampled from each end of a file for the sample digest.
+     */
+    static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * Size of the buffer used to read whole files.
+     */
+    private static final int READ_SIZE = 256 * 1024;
+
+    private static final int DIGEST_LENGTH = 32;
+
+    private static final ThreadLocal<ByteBuffer> BUFFER = ThreadLocal.withInitial(
+            () -> ByteBuffer.allocate(READ_SIZE));
+
+    /**
+     * Files with identical contents.
+     */
+    public static class Group {
+        public final long size;
+        public final byte[] digest;
+        public final List<Path> files;
+
+        Group(long size, byte[] digest, List<Path> files) {
+            this.size = size;
+            this.digest = digest;
+            this.files = files;
+        }
+    }
+
+    /**
+     * The outcome of a search.
+     */
+    public static class Result {
+        /**
+         * Groups of two or more identical files, largest files first.
+         */
+        public final List<Group> groups = new ArrayList<>();
+
+        /**
+         * Files or directories that could not be read, with the reason.
+         */
+        public final List<String> errors = new ArrayList<>();
+
+        public long filesScanned;
+
+        /**
+         * Files larger than 2 * SAMPLE_SIZE that got a sample digest.
+         */
+        public long samplesHashed;
+
+        /**
+         * Files read in full: small files, whose sample is the whole file, and
+         * larger files whose samples collided.
+         */
+        public long filesHashed;
+
+        public long bytesRead;
+
+        /**
+         * @return bytes that would be freed by keeping one file of every group
+         */
+        public long reclaimableBytes() {
+            long total = 0;
+            for (Group group : groups) {
+                total += group.size * (group.files.size() - 1);
+            }
+            return total;
+        }
+    }
+
+    private DuplicateFinder() {
+    }
+
+    /**
+     * Find every group of files with identical contents under a directory.
+     * Symbolic links are not followed.
+     *
+     * @param dir directory to search
+     * @return the groups found, with counters for each stage
+     * @throws IOException if the directory itself can't be read
+     */
+    public static Result find(Path dir) throws IOException {
+        Result result = new Result();
+        List<Path> paths = new ArrayList<>();
+        long[] sizes = walk(dir, paths, result);
+        result.filesScanned = paths.size();
+
+        // Stage 1: only files whose size occurs more than once
+        long[] sorted = sizes.clone();
+        Arrays.sort(sorted);
+        int[] candidates = IntStream.range(0, paths.size())
+                .filter(i -> sizes[i] > 0 && isShared(sorted, sizes[i]))
+                .toArray();
+        int[] empty = IntStream.range(0, paths.size()).filter(i -> sizes[i] == 0).toArray();
+        if (empty.length > 1) {
+            addGroup(result, empty, IntStream.range(0, empty.length).toArray(), paths, 0,
+                    SHA3SHAKE.SHA3(256, new byte[0], null));
+        }
+
+        // Stage 2: sample digests
+        Queue<String> errors = new ConcurrentLinkedQueue<>();
+        AtomicLong bytesRead = new AtomicLong();
+        byte[][] samples = new byte[candidates.length][];
+        IntStream.range(0, candidates.length).parallel().forEach(c -> {
+            int i = candidates[c];
+            try {
+                samples[c] = sampleDigest(paths.get(i), sizes[i], bytesRead);
+            } catch (IOException e) {
+                errors.add(paths.get(i) + ": " + e);
+            }
+        });
+        long small = Arrays.stream(candidates).filter(i -> sizes[i] <= 2L * SAMPLE_SIZE).count();
+        result.samplesHashed = candidates.length - small;
+        result.filesHashed = small;
+
+        List<Integer> needFullHash = new ArrayList<>();
+        for (int[] collision : collisions(samples)) {
+            long size = sizes[candidates[collision[0]]];
+            if (size <= 2L * SAMPLE_SIZE) {
+                // The sample covered the whole file
+                addGroup(result, candidates, collision, paths, size, samples[collision[0]]);
+            } else {
+                for (int c : collision) {
+                    needFullHash.add(candidates[c]);
+                }
+            }
+        }
+
+        // Stage 3: full digests of the remaining collisions
+        int[] full = needFullHash.stream().mapToInt(Integer::intValue).toArray();
+        byte[][] digests = new byte[full.length][];
+        IntStream.range(0, full.length).parallel().forEach(f -> {
+            int i = full[f];
+            try {
+                digests[f] = fullDigest(paths.get(i), bytesRead);
+            } catch (IOException e) {
+                errors.add(paths.get(i) + ": " + e);
+            }
+        });
+        result.filesHashed += full.length;
+        for (int[] collision : collisions(digests)) {
+            addGroup(result, full, collision, paths, sizes[full[collision[0]]], digests[collision[0]]);
+        }
+
+        result.bytesRead = bytesRead.get();
+        result.errors.addAll(errors);
+        result.groups.sort(Comparator.comparingLong((Group g) -> -g.size)
+                .thenComparing(g -> g.files.get(0)));
+        return result;
+    }
+
+    // helper functions
+
+    /**
+     * List the regular files under dir with their sizes.
+     */
+    private static long[] walk(Path dir, List<Path> paths, Result result) throws IOException {
+        long[][] sizes = { new long[1024] };
+        Files.walkFileTree(dir, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (attrs.isRegularFile()) {
+                    if (paths.size() == sizes[0].length) {
+                        sizes[0] = Arrays.copyOf(sizes[0], 2 * paths.size());
+                    }
+                    sizes[0][paths.size()] = attrs.size();
+                    paths.add(file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (file.equals(dir)) {
+                    throw e;
+                }
+                result.errors.add(file + ": " + e);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return Arrays.copyOf(sizes[0], paths.size());
+    }
+
+    /**
+     * @return whether a value occurs more than once in a sorted array that
+     *         contains it
+     */
+    private static boolean isShared(long[] sorted, long value) {
+        int at = Arrays.binarySearch(sorted, value);
+        return (at > 0 && sorted[at - 1] == value)
+                || (at + 1 < sorted.length && sorted[at + 1] == value);
+    }
+
+    /**
+     * Group digests and keep the groups with more than one member. Null
+     * digests (unreadable files) are skipped.
+     *
+     * @param digests the digests
+     * @return lists of positions in digests that share a digest
+     */
+    private static List<int[]> collisions(byte[][] digests) {
+        DigestTable table = new DigestTable(digests.length, DIGEST_LENGTH);
+        int[] groupOf = new int[digests.length];
+        int[] groupSize = new int[digests.length];
+        int groups = 0;
+        for (int f = 0; f < digests.length; f++) {
+            if (digests[f] == null) {
+                groupOf[f] = -1;
+                continue;
+            }
+            int group = table.putIfAbsent(digests[f], groups);
+            if (group < 0) {
+                group = groups++;
+            }
+            groupOf[f] = group;
+            groupSize[group]++;
+        }
+
+        int[][] members = new int[groups][];
+        int[] filled = new int[groups];
+        List<int[]> collisions = new ArrayList<>();
+        for (int f = 0; f < digests.length; f++) {
+            int group = groupOf[f];
+            if (group < 0 || groupSize[group] < 2) {
+                continue;
+            }
+            if (members[group] == null) {
+                members[group] = new int[groupSize[group]];
+                collisions.add(members[group]);
+            }
+            members[group][filled[group]++] = f;
+        }
+        return collisions;
+    }
+
+    /**
+     * Record a group of identical files.
+     *
+     * @param files     file indices
+     * @param positions positions in files of the group's members
+     */
+    private static void addGroup(Result result, int[] files, int[] positions, List<Path> paths, long size,
+            byte[] digest) {
+        List<Path> members = new ArrayList<>();
+        for (int position : positions) {
+            members.add(paths.get(files[position]));
+        }
+        members.sort(null);
+        result.groups.add(new Group(size, digest, members));
+    }
+
+    /**
+     * SHA3-256 of the size, the first and the last SAMPLE_SIZE bytes; or of
+     * the whole contents for files of at most 2 * SAMPLE_SIZE bytes.
+     */
+    private static byte[] sampleDigest(Path path, long size, AtomicLong bytesRead) throws IOException {
+        if (size <= 2L * SAMPLE_SIZE) {
+            return fullDigest(path, bytesRead);
+        }
+        SHA3SHAKE sponge = new SHA3SHAKE();
+        sponge.init(256);
+        byte[] length = new byte[8];
+        for (int i = 0; i < 8; i++) {
+            length[i] = (byte) (size >>> (8 * i));
+        }
+        sponge.absorb(length);
+        ByteBuffer buffer = BUFFER.get();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            for (long position : new long[] { 0, size - SAMPLE_SIZE }) {
+                buffer.clear().limit(SAMPLE_SIZE);
+                readFully(channel, buffer, position);
+                buffer.flip();
+                sponge.absorb(buffer);
+            }
+        }
+        bytesRead.addAndGet(2L * SAMPLE_SIZE);
+        return sponge.digest();
+    }
+
+    /**
+     * SHA3-256 of the whole contents.
+     */
+    private static byte[] fullDigest(Path path, AtomicLong bytesRead) throws IOException {
+        SHA3SHAKE sponge = new SHA3SHAKE();
+        sponge.init(256);
+        ByteBuffer buffer = BUFFER.get();
+        long total = 0;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            while (true) {
+                buffer.clear();
+                long io = SpongeStats.ioStart();
+                int n = channel.read(buffer);
+                SpongeStats.ioDone(io);
+                if (n < 0) {
+                    break;
+                }
+                buffer.flip();
+                sponge.absorb(buffer);
+                total += n;
+            }
+        }
+        bytesRead.addAndGet(total);
+        return sponge.digest();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+            throws IOException {
+        long io = SpongeStats.ioStart();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("File shrank while reading at " + position);
+            }
+        }
+        SpongeStats.ioDone(io);
+    }
+
+    /**
+     * An open-addressing hash table from fixed-length digests to non-negative
+     * ints. Keys are stored back to back in one byte array and probed linearly,
+     * so a lookup touches no objects. The digests are already uniformly
+     * distributed, so their first bytes serve as the hash code.
+     */
+    static class DigestTable {
+        private final int digestLength;
+        private byte[] keys;
+        private int[] values;
+        private int size;
+
+        /**
+         * @param expected     expected number of entries
+         * @param digestLength length of every key in bytes; at least 8
+         */
+        DigestTable(int expected, int digestLength) {
+            if (digestLength < 8) {
+                throw new IllegalArgumentException("Digests must be at least 8 bytes long");
+            }
+            this.digestLength = digestLength;
+            int capacity = Integer.highestOneBit(Math.max(16, 2 * expected - 1)) << 1;
+            allocate(capacity);
+        }
+
+        /**
+         * Store a value for a digest unless the digest is already present.
+         *
+         * @param digest the key
+         * @param value  non-negative value to store
+         * @return the value already stored for the digest, or -1 if the value
+         *         was stored
+         */
+        int putIfAbsent(byte[] digest, int value) {
+            int slot = find(keys, values, digest, 0);
+            if (values[slot] >= 0) {
+                return values[slot];
+            }
+            System.arraycopy(digest, 0, keys, slot * digestLength, digestLength);
+            values[slot] = value;
+            if (++size * 2 > values.length) {
+                grow();
+            }
+            return -1;
+        }
+
+        /**
+         * Find the slot holding a digest, or the empty slot where it belongs.
+         */
+        private int find(byte[] keys, int[] values, byte[] digest, int offset) {
+            int mask = values.length - 1;
+            long hash = 0;
+            for (int i = 7; i >= 0; i--) {
+                hash = (hash << 8) | (digest[offset + i] & 0xFF);
+            }
+            int slot = (int) (hash ^ (hash >>> 32)) & mask;
+            while (values[slot] >= 0 && !Arrays.equals(keys, slot * digestLength,
+                    (slot + 1) * digestLength, digest, offset, offset + digestLength)) {
+                slot = (slot + 1) & mask;
+            }
+            return slot;
+        }
+
+        private void allocate(int capacity) {
+            keys = new byte[capacity * digestLength];
+            values = new int[capacity];
+            Arrays.fill(values, -1);
+        }
+
+        private void grow() {
+            byte[] oldKeys = keys;
+            int[] oldValues = values;
+            allocate(2 * oldValues.length);
+            for (int slot = 0; slot < oldValues.length; slot++) {
+                if (oldValues[slot] >= 0) {
+                    int target = find(keys, values, oldKeys, slot * digestLength);
+                    System.arraycopy(oldKeys, slot * digestLength, keys, target * digestLength, digestLength);
+                    values[target] = oldValues[slot];
+                }
+            }
+        }
+    }
+}
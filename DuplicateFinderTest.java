@@ -0,0 +1,184 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Tests for {@link DuplicateFinder}: identical files must be grouped, files
+ * that only share their size, head and tail must not be, and the counters must
+ * say how many files went through each stage. {@link DuplicateFinder.DigestTable}
+ * is also checked on its own through several resizes and colliding hash codes.
+ */
+public class DuplicateFinderTest {
+
+    private static final int SAMPLE = DuplicateFinder.SAMPLE_SIZE;
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        //defaults
+        long seed = System.nanoTime();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed":
+                    if (++i < args.length) {
+                        seed = Long.parseLong(args[i]);
+                    }
+                    break;
+                case "--help":
+                    System.out.println("Usage: java DuplicateFinderTest [--seed s]\n"
+                        + "--seed s: seed for the random data (default: time based)");
+                    return;
+            }
+        }
+
+        System.out.println("Duplicate Finder Test (seed " + seed + ")\n");
+
+        Random random = new Random(seed);
+        Path dir = Files.createTempDirectory("dedupe-test");
+        try {
+            // Identical large files, and one of the same size that differs
+            byte[] large = bytes(random, 300_000);
+            write(dir, "large-1", large);
+            write(dir, "sub/large-2", large);
+            write(dir, "large-other", bytes(random, 300_000));
+
+            // Same size, head and tail, different middles
+            byte[] middle = bytes(random, 200_000);
+            write(dir, "middle-1", middle);
+            middle[100_000] ^= 1;
+            write(dir, "sub/middle-2", middle);
+
+            // Files sampled whole: identical and different small files, and
+            // two of exactly 2 * SAMPLE_SIZE bytes that differ in the middle
+            byte[] small = bytes(random, 1000);
+            write(dir, "small-1", small);
+            write(dir, "small-2", small);
+            write(dir, "small-other", bytes(random, 1000));
+            byte[] edge = bytes(random, 2 * SAMPLE);
+            write(dir, "edge-1", edge);
+            write(dir, "sub/edge-3", edge);
+            byte[] edgeOther = edge.clone();
+            edgeOther[SAMPLE] ^= 1;
+            write(dir, "edge-2", edgeOther);
+
+            // Empty files, and a file with a size nothing else has
+            write(dir, "empty-1", new byte[0]);
+            write(dir, "empty-2", new byte[0]);
+            write(dir, "sub/empty-3", new byte[0]);
+            write(dir, "unique", bytes(random, 5000));
+
+            DuplicateFinder.Result result = DuplicateFinder.find(dir);
+            check("files scanned", 15, result.filesScanned);
+            check("files sampled", 5, result.samplesHashed);
+            check("files hashed in full", 10, result.filesHashed);
+            check("bytes read", 8L * 2 * SAMPLE + 2 * 300_000 + 2 * 200_000 + 3 * 1000, result.bytesRead);
+            if (!result.errors.isEmpty()) {
+                fail("errors: " + result.errors);
+            }
+
+            List<List<String>> expected = List.of(
+                    List.of("large-1", "sub/large-2"),
+                    List.of("edge-1", "sub/edge-3"),
+                    List.of("small-1", "small-2"),
+                    List.of("empty-1", "empty-2", "sub/empty-3"));
+            byte[][] contents = { large, edge, small, new byte[0] };
+            if (result.groups.size() != expected.size()) {
+                fail(result.groups.size() + " groups, expected " + expected.size());
+            } else {
+                for (int g = 0; g < expected.size(); g++) {
+                    DuplicateFinder.Group group = result.groups.get(g);
+                    List<String> names = group.files.stream().map(p -> dir.relativize(p).toString())
+                            .sorted().collect(Collectors.toList());
+                    if (!names.equals(expected.get(g))) {
+                        fail("group " + g + " is " + names + ", expected " + expected.get(g));
+                    }
+                    if (group.size != contents[g].length
+                            || !Arrays.equals(SHA3SHAKE.SHA3(256, contents[g], null), group.digest)) {
+                        fail("group " + g + " has the wrong size or digest");
+                    }
+                }
+            }
+            check("reclaimable bytes", 300_000 + 2 * SAMPLE + 1000, result.reclaimableBytes());
+        } finally {
+            try (Stream<Path> walk = Files.walk(dir)) {
+                for (Path path : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            }
+        }
+
+        checkTable(random);
+
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Fill a table that starts small enough to grow several times, with some
+     * keys that share their first eight bytes and so their hash code, and check
+     * that every key keeps its first value.
+     */
+    private static void checkTable(Random random) {
+        DuplicateFinder.DigestTable table = new DuplicateFinder.DigestTable(4, 32);
+        byte[][] keys = new byte[10_000][];
+        for (int i = 0; i < keys.length; i++) {
+            keys[i] = bytes(random, 32);
+            if (i % 10 == 0) {
+                System.arraycopy(keys[0], 0, keys[i], 0, 8);
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            int previous = table.putIfAbsent(keys[i], i);
+            if (previous != -1) {
+                fail("new key " + i + " found with value " + previous);
+                return;
+            }
+        }
+        for (int i = 0; i < keys.length; i++) {
+            int previous = table.putIfAbsent(keys[i].clone(), keys.length + i);
+            if (previous != i) {
+                fail("key " + i + " has value " + previous + " after resizing");
+                return;
+            }
+        }
+
+        try {
+            new DuplicateFinder.DigestTable(4, 4);
+            fail("table with 4-byte keys: accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    private static byte[] bytes(Random random, int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private static void write(Path dir, String name, byte[] data) throws IOException {
+        Path file = dir.resolve(name);
+        Files.createDirectories(file.getParent());
+        Files.write(file, data);
+    }
+
+    private static void check(String name, long expected, long actual) {
+        if (expected != actual) {
+            fail(name + ": " + actual + ", expected " + expected);
+        }
+    }
+
+    private static void fail(String message) {
+        failures++;
+        System.out.println(message);
+    }
+}
@@ -0,0 +1,273 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * The Envelope class wraps a random data key under a passphrase, so the
+ * passphrase of an encrypted file can be changed without re-encrypting it.
+ *
+ * An envelope-encrypted file is a header followed by a body in the same
+ * format as a plain encrypted file (nonce, then the data XORed with
+ * SHAKE128(nonce || key)), except that the key is the random data key.
+ *
+ * Header (68 bytes):
+ *
+ * <pre>
+ * "SHE1" | salt (16) | wrapped data key (32) | tag (16)
+ * </pre>
+ *
+ * The key-encryption key is SHAKE256(salt || passphrase) with 64 bytes of
+ * output: the first 32 bytes are XORed with the data key, the last 32 key the
+ * tag. The tag is the first 16 bytes of SHA3-256(tag key || "SHE1" || salt ||
+ * wrapped data key), and is checked before the data key is unwrapped, so a
+ * wrong passphrase is reported rather than producing garbage.
+ *
+ * The header holds the only wrapped copy of the data key, so {@link #rekey}
+ * never overwrites it without a backup: it first writes a journal next to the
+ * file (the file name plus ".rekey") holding the header under the old and the
+ * new passphrase, forces it to disk, and only then rewrites the header in
+ * place. If that is interrupted, {@link #unwrap(Path, byte[])} falls back to
+ * the journal, so the file still opens with either passphrase, and running
+ * the rekey again finishes the job.
+ */
+public class Envelope {
+
+    private static final byte[] MAGIC = "SHE1".getBytes(StandardCharsets.US_ASCII);
+    private static final int SALT_LENGTH = 16;
+
+    /**
+     * Length of a data key in bytes.
+     */
+    public static final int KEY_LENGTH = 32;
+
+    private static final int TAG_LENGTH = 16;
+
+    /**
+     * Length of the header in bytes.
+     */
+    public static final int HEADER_LENGTH = MAGIC.length + SALT_LENGTH + KEY_LENGTH + TAG_LENGTH;
+
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private Envelope() {
+    }
+
+    /**
+     * @return a new random data key
+     */
+    public static byte[] newDataKey() {
+        byte[] key = new byte[KEY_LENGTH];
+        RANDOM.nextBytes(key);
+        return key;
+    }
+
+    /**
+     * Wrap a data key under a passphrase with a fresh salt.
+     *
+     * @param dataKey    the data key
+     * @param passphrase the passphrase
+     * @return the header
+     */
+    public static byte[] wrap(byte[] dataKey, byte[] passphrase) {
+        if (dataKey.length != KEY_LENGTH) {
+            throw new IllegalArgumentException("Data key must be " + KEY_LENGTH + " bytes");
+        }
+        byte[] header = new byte[HEADER_LENGTH];
+        System.arraycopy(MAGIC, 0, header, 0, MAGIC.length);
+        byte[] salt = new byte[SALT_LENGTH];
+        RANDOM.nextBytes(salt);
+        System.arraycopy(salt, 0, header, MAGIC.length, SALT_LENGTH);
+
+        byte[] kek = deriveKek(salt, passphrase);
+        int keyAt = MAGIC.length + SALT_LENGTH;
+        for (int i = 0; i < KEY_LENGTH; i++) {
+            header[keyAt + i] = (byte) (dataKey[i] ^ kek[i]);
+        }
+        System.arraycopy(tag(kek, header), 0, header, keyAt + KEY_LENGTH, TAG_LENGTH);
+        Arrays.fill(kek, (byte) 0);
+        return header;
+    }
+
+    /**
+     * Recover the data key from a header.
+     *
+     * @param header     the header
+     * @param passphrase the passphrase it was wrapped under
+     * @return the data key
+     * @throws IOException if the header is malformed or the passphrase is wrong
+     */
+    public static byte[] unwrap(byte[] header, byte[] passphrase) throws IOException {
+        if (header.length != HEADER_LENGTH
+                || !Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)) {
+            throw new IOException("Not an envelope-encrypted file");
+        }
+        byte[] salt = Arrays.copyOfRange(header, MAGIC.length, MAGIC.length + SALT_LENGTH);
+        byte[] kek = deriveKek(salt, passphrase);
+        int keyAt = MAGIC.length + SALT_LENGTH;
+        try {
+            byte[] expected = tag(kek, header);
+            byte[] actual = Arrays.copyOfRange(header, keyAt + KEY_LENGTH, HEADER_LENGTH);
+            if (!MessageDigest.isEqual(expected, actual)) {
+                throw new IOException("Wrong passphrase or corrupted header");
+            }
+            byte[] dataKey = new byte[KEY_LENGTH];
+            for (int i = 0; i < KEY_LENGTH; i++) {
+                dataKey[i] = (byte) (header[keyAt + i] ^ kek[i]);
+            }
+            return dataKey;
+        } finally {
+            Arrays.fill(kek, (byte) 0);
+        }
+    }
+
+    /**
+     * Recover the data key of an envelope-encrypted file. If the header does
+     * not open with the passphrase and an interrupted {@link #rekey} left a
+     * journal behind, the headers in the journal are tried as well.
+     *
+     * @param file       the encrypted file
+     * @param passphrase the passphrase
+     * @return the data key
+     * @throws IOException if the file is not envelope-encrypted or the
+     *                     passphrase is wrong
+     */
+    public static byte[] unwrap(Path file, byte[] passphrase) throws IOException {
+        byte[] header;
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            header = readHeader(channel);
+        }
+        try {
+            return unwrap(header, passphrase);
+        } catch (IOException e) {
+            Path journal = journalPath(file);
+            if (Files.exists(journal) && Files.size(journal) == 2 * HEADER_LENGTH) {
+                byte[] headers = Files.readAllBytes(journal);
+                for (int slot = 0; slot < 2; slot++) {
+                    try {
+                        return unwrap(Arrays.copyOfRange(headers, slot * HEADER_LENGTH,
+                                (slot + 1) * HEADER_LENGTH), passphrase);
+                    } catch (IOException ignored) {
+                        // try the other slot
+                    }
+                }
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Change the passphrase of an envelope-encrypted file by rewriting its
+     * header in place. The body is neither read nor written.
+     *
+     * The header under both passphrases is journaled and forced to disk
+     * before the header is overwritten, and the journal is deleted once the
+     * new header is on disk, so a crash at any point leaves the file readable
+     * with one of the two passphrases.
+     *
+     * @param file          the encrypted file
+     * @param oldPassphrase the current passphrase
+     * @param newPassphrase the new passphrase
+     * @throws IOException if the file is not envelope-encrypted, the old
+     *                     passphrase is wrong, or writing fails
+     */
+    public static void rekey(Path file, byte[] oldPassphrase, byte[] newPassphrase) throws IOException {
+        byte[] dataKey = unwrap(file, oldPassphrase);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            byte[] newHeader = wrap(dataKey, newPassphrase);
+
+            // Journal first: written beside the final name and renamed over it,
+            // so an older journal stays whole until the new one is complete
+            Path journal = journalPath(file);
+            Path pending = journal.resolveSibling(journal.getFileName() + ".tmp");
+            ByteBuffer headers = ByteBuffer.allocate(2 * HEADER_LENGTH)
+                    .put(wrap(dataKey, oldPassphrase)).put(newHeader).flip();
+            try (FileChannel out = FileChannel.open(pending, StandardOpenOption.CREATE,
+                    StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                writeFully(out, headers, 0);
+                out.force(true);
+            }
+            Files.move(pending, journal, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            forceDirectory(journal);
+
+            writeFully(channel, ByteBuffer.wrap(newHeader), 0);
+            channel.force(false);
+
+            Files.delete(journal);
+        } finally {
+            Arrays.fill(dataKey, (byte) 0);
+        }
+    }
+
+    // helper functions
+
+    /**
+     * Where {@link #rekey} journals the headers of a file.
+     */
+    static Path journalPath(Path file) {
+        return file.resolveSibling(file.getFileName() + ".rekey");
+    }
+
+    private static byte[] readHeader(FileChannel channel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        long io = SpongeStats.ioStart();
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                throw new IOException("Not an envelope-encrypted file");
+            }
+        }
+        SpongeStats.ioDone(io);
+        return header.array();
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        long io = SpongeStats.ioStart();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        SpongeStats.ioDone(io);
+    }
+
+    /**
+     * Make a rename in a directory durable. Not every platform can open a
+     * directory for this; there the rename is left to the file system.
+     */
+    private static void forceDirectory(Path file) {
+        Path dir = file.toAbsolutePath().getParent();
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            // not supported here
+        }
+    }
+
+    private static byte[] deriveKek(byte[] salt, byte[] passphrase) {
+        SHA3SHAKE sponge = new SHA3SHAKE();
+        sponge.init(256);
+        sponge.absorb(salt);
+        sponge.absorb(passphrase);
+        byte[] kek = sponge.squeeze(2 * KEY_LENGTH);
+        sponge.wipe();
+        return kek;
+    }
+
+    /**
+     * The tag over the magic, salt and wrapped key of a header.
+     */
+    private static byte[] tag(byte[] kek, byte[] header) {
+        SHA3SHAKE sponge = new SHA3SHAKE();
+        sponge.init(256);
+        sponge.absorb(kek, KEY_LENGTH, KEY_LENGTH);
+        sponge.absorb(header, 0, MAGIC.length + SALT_LENGTH + KEY_LENGTH);
+        byte[] digest = sponge.digest();
+        sponge.wipe();
+        return Arrays.copyOf(digest, TAG_LENGTH);
+    }
+}
@@ -0,0 +1,149 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Tests for {@link Envelope}: data keys must round-trip through wrap and
+ * unwrap, rekey must change only the header, and a rekey interrupted at any
+ * point must leave the file readable.
+ */
+public class EnvelopeTest {
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        //defaults
+        long seed = System.nanoTime();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed":
+                    if (++i < args.length) {
+                        seed = Long.parseLong(args[i]);
+                    }
+                    break;
+                case "--help":
+                    System.out.println("Usage: java EnvelopeTest [--seed s]\n"
+                        + "--seed s: seed for the random data (default: time based)");
+                    return;
+            }
+        }
+
+        System.out.println("Envelope Test (seed " + seed + ")\n");
+
+        Random random = new Random(seed);
+        byte[] oldPassphrase = "old passphrase".getBytes();
+        byte[] newPassphrase = "new passphrase".getBytes();
+        Path dir = Files.createTempDirectory("envelope-test");
+        try {
+            // Wrap and unwrap in memory
+            byte[] dataKey = Envelope.newDataKey();
+            byte[] header = Envelope.wrap(dataKey, oldPassphrase);
+            if (!Arrays.equals(dataKey, Envelope.unwrap(header, oldPassphrase))) {
+                fail("unwrap does not return the wrapped key");
+            }
+            expectFailure("unwrap with a wrong passphrase", () -> Envelope.unwrap(header, newPassphrase));
+            byte[] tampered = header.clone();
+            tampered[4 + random.nextInt(Envelope.HEADER_LENGTH - 4)] ^= 1;
+            expectFailure("unwrap of a tampered header", () -> Envelope.unwrap(tampered, oldPassphrase));
+
+            // Rekey a file: only the header may change
+            byte[] body = new byte[10_000];
+            random.nextBytes(body);
+            Path file = dir.resolve("data.enc");
+            Files.write(file, concat(header, body));
+
+            Envelope.rekey(file, oldPassphrase, newPassphrase);
+            byte[] rekeyed = Files.readAllBytes(file);
+            if (!Arrays.equals(body, Arrays.copyOfRange(rekeyed, Envelope.HEADER_LENGTH, rekeyed.length))) {
+                fail("rekey changed the body");
+            }
+            if (!Arrays.equals(dataKey, Envelope.unwrap(file, newPassphrase))) {
+                fail("new passphrase does not open the file after rekey");
+            }
+            expectFailure("old passphrase after rekey", () -> Envelope.unwrap(file, oldPassphrase));
+            expectFailure("rekey with a wrong passphrase",
+                    () -> Envelope.rekey(file, oldPassphrase, "other".getBytes()));
+            if (Files.exists(Envelope.journalPath(file))) {
+                fail("rekey left its journal behind");
+            }
+
+            // Interrupted rekeys: the journal holds the header under both
+            // passphrases, and the header in the file is old, torn or new
+            byte[] journal = concat(Envelope.wrap(dataKey, oldPassphrase), Envelope.wrap(dataKey, newPassphrase));
+            byte[][] fileHeaders = { Envelope.wrap(dataKey, oldPassphrase), new byte[Envelope.HEADER_LENGTH],
+                    Envelope.wrap(dataKey, newPassphrase) };
+            String[] states = { "before the header was written", "while the header was written",
+                    "after the header was written" };
+            for (int i = 0; i < states.length; i++) {
+                Files.write(file, concat(fileHeaders[i], body));
+                Files.write(Envelope.journalPath(file), journal);
+                for (byte[] passphrase : List.of(oldPassphrase, newPassphrase)) {
+                    if (!Arrays.equals(dataKey, Envelope.unwrap(file, passphrase))) {
+                        fail("file does not open with \"" + new String(passphrase) + "\" after a crash "
+                                + states[i]);
+                    }
+                }
+
+                // Running the same rekey again finishes it
+                Envelope.rekey(file, oldPassphrase, newPassphrase);
+                if (!Arrays.equals(dataKey, Envelope.unwrap(header(file), newPassphrase))
+                        || Files.exists(Envelope.journalPath(file))) {
+                    fail("repeating the rekey did not finish it after a crash " + states[i]);
+                }
+            }
+
+            // Without a journal a damaged header can't be opened
+            Files.write(file, concat(new byte[Envelope.HEADER_LENGTH], body));
+            expectFailure("unwrap of a damaged header without a journal",
+                    () -> Envelope.unwrap(file, newPassphrase));
+        } finally {
+            try (Stream<Path> walk = Files.walk(dir)) {
+                for (Path path : walk.sorted(Comparator.reverseOrder()).collect(Collectors.toList())) {
+                    Files.delete(path);
+                }
+            }
+        }
+
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * An envelope operation that is expected to fail.
+     */
+    private interface Action {
+        void run() throws IOException;
+    }
+
+    private static void expectFailure(String name, Action action) {
+        try {
+            action.run();
+            fail(name + ": succeeded");
+        } catch (IOException e) {
+            // expected
+        }
+    }
+
+    private static byte[] header(Path file) throws IOException {
+        return Arrays.copyOf(Files.readAllBytes(file), Envelope.HEADER_LENGTH);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        return ByteBuffer.allocate(a.length + b.length).put(a).put(b).array();
+    }
+
+    private static void fail(String message) {
+        failures++;
+        System.out.println(message);
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * A KeccakEngine implements the KECCAK-f[1600] permutation used by the
+ * SHA-3/SHAKE sponges.
+ *
+ * The state is passed as 25 lanes of 64 bits, with lane (x, y) at index
+ * x + 5y. This is also the order in which FIPS 202 lays the state out as
+ * bytes, so lane i covers bytes 8i to 8i + 7 in little-endian order.
+ *
+ * Engines keep no per-call state of their own and may be shared between
+ * sponges and threads. {@link KeccakEngines} lists the available engines and
+ * picks the one the sponges use.
+ */
+public interface KeccakEngine {
+
+    /**
+     * @return a short name identifying the engine, e.g. "unrolled"
+     */
+    String name();
+
+    /**
+     * Apply the 24-round KECCAK-f[1600] permutation in place.
+     *
+     * @param lanes the 25 lanes of the state
+     */
+    void permute(long[] lanes);
+
+    /**
+     * Apply the permutation to several independent states. Engines that can
+     * interleave the work on several states override this.
+     *
+     * @param states the states to permute, each 25 lanes
+     * @param count  the number of states to permute, starting at index 0
+     */
+    default void permuteAll(long[][] states, int count) {
+        for (int i = 0; i < count; i++) {
+            permute(states[i]);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Differential test for the KECCAK-f engines: every engine must produce
+ * bit-identical results to the reference engine, both for the bare
+ * permutation and for whole SHA-3/SHAKE computations.
+ */
+public class KeccakEngineTest {
+
+    public static void main(String[] args) {
+        //defaults
+        int iterations = 1000;
+        long seed = System.nanoTime();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--iterations":
+                    if (++i < args.length) {
+                        iterations = Integer.parseInt(args[i]);
+                    }
+                    break;
+                case "--seed":
+                    if (++i < args.length) {
+                        seed = Long.parseLong(args[i]);
+                    }
+                    break;
+                case "--help":
+                    System.out.println("Usage: java KeccakEngineTest [--iterations n] [--seed s]\n"
+                        + "--iterations n: number of random cases per engine (default 1000)\n"
+                        + "--seed s: seed for the random cases (default: time based)");
+                    return;
+            }
+        }
+
+        System.out.println("KECCAK Engine Differential Test (seed " + seed + ")\n");
+
+        List<KeccakEngine> engines = KeccakEngines.all();
+        KeccakEngine reference = engines.get(0);
+        int failures = 0;
+
+        for (KeccakEngine engine : engines.subList(1, engines.size())) {
+            Random random = new Random(seed);
+            int failed = 0;
+
+            for (int i = 0; i < iterations; i++) {
+                // Single permutation on a random state
+                long[] expected = randomState(random);
+                long[] actual = expected.clone();
+                reference.permute(expected);
+                engine.permute(actual);
+                if (!Arrays.equals(expected, actual)) {
+                    failed++;
+                    System.out.println(engine.name() + ": permute() differs on case " + i);
+                }
+
+                // Several states at once
+                int count = 1 + random.nextInt(9);
+                long[][] states = new long[count][];
+                long[][] oracle = new long[count][];
+                for (int s = 0; s < count; s++) {
+                    states[s] = randomState(random);
+                    oracle[s] = states[s].clone();
+                    reference.permute(oracle[s]);
+                }
+                engine.permuteAll(states, count);
+                if (!Arrays.deepEquals(states, oracle)) {
+                    failed++;
+                    System.out.println(engine.name() + ": permuteAll() differs on case " + i);
+                }
+
+                // A whole hash, absorbed in random pieces
+                int[] suffixes = { 224, 256, 384, 512, 128, 256 };
+                int which = random.nextInt(suffixes.length);
+                boolean shake = which >= 4;
+                byte[] message = new byte[random.nextInt(600)];
+                random.nextBytes(message);
+                int split = message.length == 0 ? 0 : random.nextInt(message.length);
+                int outputLength = 1 + random.nextInt(400);
+
+                byte[][] outputs = new byte[2][];
+                KeccakEngine[] pair = { reference, engine };
+                for (int k = 0; k < 2; k++) {
+                    SHA3SHAKE sponge = new SHA3SHAKE(pair[k]);
+                    sponge.init(suffixes[which]);
+                    sponge.absorb(message, 0, split);
+                    sponge.absorb(message, split, message.length - split);
+                    outputs[k] = shake ? sponge.squeeze(outputLength) : sponge.digest();
+                }
+                if (!Arrays.equals(outputs[0], outputs[1])) {
+                    failed++;
+                    System.out.println(engine.name() + ": " + (shake ? "SHAKE" : "SHA3-") + suffixes[which]
+                            + " differs on a " + message.length + " byte message (case " + i + ")");
+                }
+            }
+
+            System.out.printf("%-14s %s%n", engine.name(), failed == 0 ? "PASS" : "FAIL (" + failed + ")");
+            failures += failed;
+        }
+
+        System.out.println("\nSelected engine: " + KeccakEngines.selected().name());
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static long[] randomState(Random random) {
+        long[] lanes = new long[25];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = random.nextLong();
+        }
+        return lanes;
+    }
+}
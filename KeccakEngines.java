@@ -0,0 +1,140 @@
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The KeccakEngines class lists the available {@link KeccakEngine}s and picks
+ * the one used by default.
+ *
+ * The sha3.engine system property selects an engine by name. If it is unset,
+ * the unrolled engine is used. If it is set to "auto", every optimized engine
+ * is warmed up until the JIT has compiled it and then timed on this CPU and
+ * JVM, and the fastest one wins; that takes a noticeable fraction of a second,
+ * so it is only done when asked for. The reference engine is only used when
+ * asked for by name.
+ */
+public class KeccakEngines {
+
+    /**
+     * Array of round constants to be applied to Lane(0, 0), precomputed for each
+     * of the 24 rounds.
+     */
+    static final long[] ROUND_CONSTANTS = new long[] {
+            0x0000000000000001L, 0x0000000000008082L, 0x800000000000808aL,
+            0x8000000080008000L, 0x000000000000808bL, 0x0000000080000001L,
+            0x8000000080008081L, 0x8000000000008009L, 0x000000000000008aL,
+            0x0000000000000088L, 0x0000000080008009L, 0x000000008000000aL,
+            0x000000008000808bL, 0x800000000000008bL, 0x8000000000008089L,
+            0x8000000000008003L, 0x8000000000008002L, 0x8000000000000080L,
+            0x000000000000800aL, 0x800000008000000aL, 0x8000000080008081L,
+            0x8000000000008080L, 0x0000000080000001L, 0x8000000080008008L
+    };
+
+    /**
+     * Engine used when sha3.engine is not set.
+     */
+    private static final String DEFAULT_ENGINE = "unrolled";
+
+    /**
+     * Number of untimed permutations per engine before calibration, enough for
+     * the JIT to compile it fully.
+     */
+    private static final int WARMUP_PERMUTATIONS = 20_000;
+
+    /**
+     * Number of permutations timed per engine and calibration run.
+     */
+    private static final int CALIBRATION_PERMUTATIONS = 2_000;
+
+    /**
+     * Number of timed runs per engine; the fastest run counts.
+     */
+    private static final int CALIBRATION_RUNS = 5;
+
+    /**
+     * Holds the default engine, so it is only chosen when first needed.
+     */
+    private static class Selected {
+        static final KeccakEngine ENGINE = choose();
+    }
+
+    private KeccakEngines() {
+    }
+
+    /**
+     * @return every available engine, the reference engine first
+     */
+    public static List<KeccakEngine> all() {
+        return List.of(new ReferenceKeccakEngine(), new UnrolledKeccakEngine(),
+                new ComplementingKeccakEngine(), new MultiStateKeccakEngine());
+    }
+
+    /**
+     * Look up an engine by name.
+     *
+     * @param name one of "reference", "unrolled", "complementing" or
+     *             "multistate"
+     * @return the engine
+     */
+    public static KeccakEngine byName(String name) {
+        for (KeccakEngine engine : all()) {
+            if (engine.name().equals(name)) {
+                return engine;
+            }
+        }
+        throw new IllegalArgumentException("Unknown KECCAK engine: \"" + name + "\"");
+    }
+
+    /**
+     * @return the engine used by sponges that were not given one explicitly
+     */
+    public static KeccakEngine selected() {
+        return Selected.ENGINE;
+    }
+
+    // helper functions
+
+    private static KeccakEngine choose() {
+        String name = System.getProperty("sha3.engine", DEFAULT_ENGINE);
+        if (!name.equals("auto")) {
+            return byName(name);
+        }
+
+        List<KeccakEngine> candidates = all().subList(1, all().size());
+        long[] best = new long[candidates.size()];
+        Arrays.fill(best, Long.MAX_VALUE);
+        long[] lanes = new long[25];
+
+        // Time compiled code, not the interpreter
+        for (KeccakEngine engine : candidates) {
+            for (int i = 0; i < WARMUP_PERMUTATIONS; i++) {
+                engine.permute(lanes);
+            }
+        }
+
+        // Take turns so a burst of background load doesn't favor one engine.
+        // Engines more than twice as slow as the leader drop out, which keeps
+        // the calibration short.
+        for (int run = 0; run < CALIBRATION_RUNS; run++) {
+            long leader = Arrays.stream(best).min().getAsLong();
+            for (int e = 0; e < candidates.size(); e++) {
+                if (best[e] != Long.MAX_VALUE && best[e] > 2 * leader) {
+                    continue;
+                }
+                KeccakEngine engine = candidates.get(e);
+                long start = System.nanoTime();
+                for (int i = 0; i < CALIBRATION_PERMUTATIONS; i++) {
+                    engine.permute(lanes);
+                }
+                best[e] = Math.min(best[e], System.nanoTime() - start);
+            }
+        }
+
+        int fastest = 0;
+        for (int e = 1; e < best.length; e++) {
+            if (best[e] < best[fastest]) {
+                fastest = e;
+            }
+        }
+        return candidates.get(fastest);
+    }
+}
@@ -0,0 +1,217 @@
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The KeyCache class remembers keys derived from passphrases, and sponges that
+ * have already absorbed a passphrase, so a batch of operations under the same
+ * passphrase only pays for the derivation once.
+ *
+ * Entries are looked up by the domain and the passphrase itself, so a lookup
+ * costs a hash of the passphrase bytes rather than a permutation; hashing
+ * the passphrase first would cost as much as the derivations being cached.
+ * The cache keeps its own copy of each passphrase, compares passphrases in
+ * constant time, and wipes the copy together with the entry. The domain
+ * names the derivation (for example "encrypt" or "mac-256"), so the same
+ * passphrase used for different purposes never shares an entry.
+ *
+ * The cache holds at most a fixed number of entries and evicts the least
+ * recently used one when full. Entries also expire a fixed time after they were
+ * stored. Evicted, expired and cleared entries are overwritten with zeros.
+ * Callers always receive copies, which they own and should wipe when done.
+ */
+public class KeyCache {
+
+    /**
+     * What an entry is looked up by: a domain and a passphrase.
+     */
+    private static final class Id {
+        final String domain;
+        final byte[] passphrase;
+        final int hash;
+
+        Id(String domain, byte[] passphrase) {
+            this.domain = domain;
+            this.passphrase = passphrase;
+            this.hash = 31 * domain.hashCode() + Arrays.hashCode(passphrase);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object other) {
+            if (!(other instanceof Id)) {
+                return false;
+            }
+            Id id = (Id) other;
+            return domain.equals(id.domain) && MessageDigest.isEqual(passphrase, id.passphrase);
+        }
+    }
+
+    /**
+     * A cached key or keyed sponge.
+     */
+    private static class Entry {
+        final byte[] key;
+        final SHA3SHAKE sponge;
+        final long expires;
+
+        Entry(byte[] key, SHA3SHAKE sponge, long expires) {
+            this.key = key;
+            this.sponge = sponge;
+            this.expires = expires;
+        }
+
+        void wipe() {
+            if (key != null) {
+                Arrays.fill(key, (byte) 0);
+            }
+            if (sponge != null) {
+                sponge.wipe();
+            }
+        }
+    }
+
+    private final int capacity;
+    private final long ttlNanos;
+
+    /**
+     * Entries in access order, least recently used first.
+     */
+    private final LinkedHashMap<Id, Entry> entries;
+
+    private long hits;
+    private long misses;
+
+    /**
+     * Create a cache.
+     *
+     * @param capacity   maximum number of entries; must be greater than zero
+     * @param ttlSeconds seconds an entry stays valid after it is stored; must be
+     *                   greater than zero
+     */
+    public KeyCache(int capacity, long ttlSeconds) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity must be greater than zero");
+        }
+        if (ttlSeconds <= 0) {
+            throw new IllegalArgumentException("Cache TTL must be greater than zero");
+        }
+        this.capacity = capacity;
+        this.ttlNanos = ttlSeconds * 1_000_000_000L;
+        entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Id, Entry> eldest) {
+                if (size() > KeyCache.this.capacity) {
+                    Arrays.fill(eldest.getKey().passphrase, (byte) 0);
+                    eldest.getValue().wipe();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * Get the key derived from a passphrase, deriving and caching it if needed.
+     *
+     * @param domain     name of the derivation
+     * @param passphrase the passphrase
+     * @param derive     computes the key from the passphrase on a miss
+     * @return a copy of the key
+     */
+    public synchronized byte[] key(String domain, byte[] passphrase, Function<byte[], byte[]> derive) {
+        Entry entry = lookup(domain, passphrase);
+        if (entry == null) {
+            entry = new Entry(derive.apply(passphrase), null, System.nanoTime() + ttlNanos);
+            entries.put(new Id(domain, passphrase.clone()), entry);
+        }
+        return entry.key.clone();
+    }
+
+    /**
+     * Get a sponge that has absorbed a passphrase, creating and caching it if
+     * needed.
+     *
+     * @param domain     name of the derivation
+     * @param passphrase the passphrase
+     * @param create     creates the keyed sponge from the passphrase on a miss
+     * @return a copy of the keyed sponge, ready to absorb more data
+     */
+    public synchronized SHA3SHAKE sponge(String domain, byte[] passphrase,
+            Function<byte[], SHA3SHAKE> create) {
+        Entry entry = lookup(domain, passphrase);
+        if (entry == null) {
+            entry = new Entry(null, create.apply(passphrase), System.nanoTime() + ttlNanos);
+            entries.put(new Id(domain, passphrase.clone()), entry);
+        }
+        return entry.sponge.copy();
+    }
+
+    /**
+     * Zeroize and remove every entry.
+     */
+    public synchronized void clear() {
+        for (Map.Entry<Id, Entry> entry : entries.entrySet()) {
+            Arrays.fill(entry.getKey().passphrase, (byte) 0);
+            entry.getValue().wipe();
+        }
+        entries.clear();
+    }
+
+    /**
+     * @return number of entries currently cached
+     */
+    public synchronized int size() {
+        purgeExpired(System.nanoTime());
+        return entries.size();
+    }
+
+    /**
+     * @return number of lookups answered from the cache
+     */
+    public synchronized long hits() {
+        return hits;
+    }
+
+    /**
+     * @return number of lookups that had to derive a new entry
+     */
+    public synchronized long misses() {
+        return misses;
+    }
+
+    // helper functions
+
+    /**
+     * Find a live entry, dropping any that have expired.
+     */
+    private Entry lookup(String domain, byte[] passphrase) {
+        purgeExpired(System.nanoTime());
+        Entry entry = entries.get(new Id(domain, passphrase));
+        if (entry == null) {
+            misses++;
+        } else {
+            hits++;
+        }
+        return entry;
+    }
+
+    private void purgeExpired(long now) {
+        Iterator<Map.Entry<Id, Entry>> it = entries.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Id, Entry> entry = it.next();
+            if (now - entry.getValue().expires >= 0) {
+                Arrays.fill(entry.getKey().passphrase, (byte) 0);
+                entry.getValue().wipe();
+                it.remove();
+            }
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.Function;
+
+/**
+ * Tests for {@link KeyCache}: hits must not derive again, callers' copies must
+ * not reach the cache, the least recently used entry must be evicted, expired
+ * entries must be derived again, and every entry that leaves the cache must be
+ * overwritten with zeros.
+ */
+public class KeyCacheTest {
+
+    private static int failures;
+
+    /**
+     * Every key returned by the derive function below, in order, so the test
+     * can look at the arrays the cache holds.
+     */
+    private static final List<byte[]> derived = new ArrayList<>();
+
+    public static void main(String[] args) throws InterruptedException {
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--help":
+                    System.out.println("Usage: java KeyCacheTest\n"
+                        + "Takes about two seconds, as it waits for entries to expire");
+                    return;
+            }
+        }
+
+        System.out.println("Key Cache Test\n");
+
+        Function<byte[], byte[]> derive = passphrase -> {
+            byte[] key = SHA3SHAKE.SHAKE(128, passphrase, 32, null);
+            derived.add(key);
+            return key;
+        };
+
+        // A hit returns the same key without deriving it again
+        KeyCache cache = new KeyCache(2, 3600);
+        byte[] first = cache.key("encrypt", bytes("alpha"), derive);
+        byte[] again = cache.key("encrypt", bytes("alpha"), derive);
+        if (derived.size() != 1 || cache.hits() != 1 || cache.misses() != 1) {
+            fail("hit derived again (" + derived.size() + " derivations, " + cache.hits() + " hits)");
+        }
+        if (!Arrays.equals(first, again) || first == again) {
+            fail("hit did not return an equal copy");
+        }
+
+        // The domain, the length and every byte of the passphrase matter
+        cache.key("mac-256", bytes("alpha"), derive);
+        cache.key("mac-256", bytes("alph"), derive);
+        cache.key("mac-256", bytes("alphb"), derive);
+        if (derived.size() != 4) {
+            fail("different passphrases or domains shared an entry");
+        }
+
+        // Changing the returned copy or the caller's passphrase leaves the
+        // entry alone
+        KeyCache owned = new KeyCache(4, 3600);
+        byte[] passphrase = bytes("beta");
+        byte[] key = owned.key("encrypt", passphrase, derive);
+        byte[] expected = key.clone();
+        Arrays.fill(key, (byte) 0x55);
+        Arrays.fill(passphrase, (byte) 0);
+        if (!Arrays.equals(expected, owned.key("encrypt", bytes("beta"), derive))) {
+            fail("changing a returned key changed the cached key");
+        }
+        if (owned.hits() != 1) {
+            fail("changing the caller's passphrase changed the cached entry");
+        }
+
+        // With room for two entries, a third evicts the least recently used
+        KeyCache lru = new KeyCache(2, 3600);
+        derived.clear();
+        lru.key("encrypt", bytes("one"), derive);
+        lru.key("encrypt", bytes("two"), derive);
+        lru.key("encrypt", bytes("one"), derive);
+        lru.key("encrypt", bytes("three"), derive);
+        byte[] evicted = derived.get(1);
+        if (lru.size() != 2) {
+            fail("cache holds " + lru.size() + " entries, capacity is 2");
+        }
+        if (!isZero(evicted)) {
+            fail("evicted key was not zeroed");
+        }
+        if (isZero(derived.get(0)) || isZero(derived.get(2))) {
+            fail("a live key was zeroed");
+        }
+        long misses = lru.misses();
+        lru.key("encrypt", bytes("one"), derive);
+        lru.key("encrypt", bytes("two"), derive);
+        if (lru.misses() != misses + 1) {
+            fail("eviction removed the wrong entry");
+        }
+
+        // Cached sponges are copied out and wiped when cleared
+        SHA3SHAKE[] created = new SHA3SHAKE[1];
+        Function<byte[], SHA3SHAKE> create = p -> {
+            created[0] = new SHA3SHAKE();
+            created[0].init(128);
+            created[0].absorb(p);
+            return created[0];
+        };
+        KeyCache sponges = new KeyCache(2, 3600);
+        byte[] output = sponges.sponge("kmac", bytes("gamma"), create).squeeze(32);
+        if (!Arrays.equals(output, sponges.sponge("kmac", bytes("gamma"), create).squeeze(32))) {
+            fail("squeezing a copy changed the cached sponge");
+        }
+        List<byte[]> keys = new ArrayList<>(derived);
+        sponges.clear();
+        lru.clear();
+        if (!isWiped(created[0])) {
+            fail("clear did not wipe the cached sponge");
+        }
+        for (byte[] k : keys) {
+            if (!isZero(k)) {
+                fail("clear did not zero a cached key");
+                break;
+            }
+        }
+        if (lru.size() != 0 || sponges.size() != 0) {
+            fail("clear left entries behind");
+        }
+
+        // An expired entry is zeroed and derived again
+        KeyCache expiring = new KeyCache(4, 1);
+        derived.clear();
+        expiring.key("encrypt", bytes("delta"), derive);
+        expiring.sponge("kmac", bytes("delta"), create);
+        Thread.sleep(1100);
+        if (expiring.size() != 0) {
+            fail("expired entries are still cached");
+        }
+        if (!isZero(derived.get(0)) || !isWiped(created[0])) {
+            fail("expired entries were not zeroed");
+        }
+        expiring.key("encrypt", bytes("delta"), derive);
+        if (derived.size() != 2) {
+            fail("expired key was not derived again");
+        }
+
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes();
+    }
+
+    private static boolean isZero(byte[] data) {
+        for (byte b : data) {
+            if (b != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A wiped sponge is no longer initialized, so squeezing it fails.
+     */
+    private static boolean isWiped(SHA3SHAKE sponge) {
+        try {
+            sponge.squeeze(1);
+            return false;
+        } catch (IllegalStateException e) {
+            return true;
+        }
+    }
+
+    private static void fail(String message) {
+        failures++;
+        System.out.println(message);
+    }
+}
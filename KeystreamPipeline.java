@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The KeystreamPipeline class XORs a stream with the output of a keyed sponge,
+ * generating the keystream on one thread while another reads, XORs and writes.
+ *
+ * A producer thread squeezes keystream ahead into a ring of reusable blocks.
+ * The calling thread reads a block of input, takes the next keystream block,
+ * XORs it in, writes the result and hands the block back to the producer.
+ * The output is exactly the same as squeezing the whole keystream and XORing
+ * it byte by byte, so the pipeline can be used on any file in the existing
+ * encrypted format.
+ */
+public class KeystreamPipeline {
+
+    /**
+     * Bytes per keystream block. A multiple of the SHAKE128 rate (168 bytes),
+     * so every squeeze call continues the keystream exactly where the previous
+     * one ended.
+     */
+    static final int BLOCK_SIZE = 168 * 1560;
+
+    /**
+     * Number of keystream blocks in the ring, i.e. how far the producer may run
+     * ahead of the consumer.
+     */
+    private static final int RING_SIZE = 4;
+
+    /**
+     * Put on the ready queue in place of a keystream block when the producer
+     * fails, so the consumer stops waiting and reports the failure.
+     */
+    private static final byte[] FAILED = new byte[0];
+
+    private KeystreamPipeline() {
+    }
+
+    /**
+     * XOR everything remaining in a stream with the sponge's keystream and write
+     * the result.
+     *
+     * @param keystream a sponge that has absorbed the nonce and key; it is
+     *                  squeezed by the producer thread and must not be used by
+     *                  the caller until this method returns
+     * @param in        the input
+     * @param out       where the result is written
+     * @return the number of bytes processed
+     * @throws IOException if reading or writing fails, squeezing the keystream
+     *                     fails, or the thread is interrupted
+     */
+    public static long xor(SHA3SHAKE keystream, InputStream in, OutputStream out) throws IOException {
+        BlockingQueue<byte[]> free = new ArrayBlockingQueue<>(RING_SIZE);
+        BlockingQueue<byte[]> ready = new ArrayBlockingQueue<>(RING_SIZE);
+        byte[][] ring = new byte[RING_SIZE][BLOCK_SIZE];
+        for (byte[] block : ring) {
+            free.add(block);
+        }
+
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        Thread producer = new Thread(() -> {
+            try {
+                while (true) {
+                    byte[] block = free.take();
+                    keystream.squeeze(block, BLOCK_SIZE);
+                    ready.put(block);
+                }
+            } catch (InterruptedException e) {
+                // the consumer is done
+            } catch (Throwable t) {
+                // the producer holds a block, so there is always room
+                failure.set(t);
+                ready.offer(FAILED);
+            }
+        }, "keystream");
+        producer.setDaemon(true);
+        producer.start();
+
+        byte[] data = new byte[BLOCK_SIZE];
+        long total = 0;
+        try {
+            while (true) {
+                long io = SpongeStats.ioStart();
+                int n = in.readNBytes(data, 0, BLOCK_SIZE);
+                SpongeStats.ioDone(io);
+                if (n == 0) {
+                    break;
+                }
+
+                byte[] mask = ready.take();
+                if (mask == FAILED) {
+                    Throwable t = failure.get();
+                    if (t instanceof Error) {
+                        throw (Error) t;
+                    }
+                    throw new IOException("Keystream generation failed", t);
+                }
+                xor(data, mask, n);
+                free.put(mask);
+
+                io = SpongeStats.ioStart();
+                out.write(data, 0, n);
+                SpongeStats.ioDone(io);
+                total += n;
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for keystream", e);
+        } finally {
+            producer.interrupt();
+            try {
+                producer.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            for (byte[] block : ring) {
+                Arrays.fill(block, (byte) 0);
+            }
+            keystream.wipe();
+        }
+        return total;
+    }
+
+    /**
+     * XOR the first len bytes of mask into data. The JIT vectorizes this loop;
+     * a long-at-a-time VarHandle version was no faster once compiled and much
+     * slower before, which is most of a short command-line run.
+     */
+    static void xor(byte[] data, byte[] mask, int len) {
+        for (int i = 0; i < len; i++) {
+            data[i] ^= mask[i];
+        }
+    }
+}
@@ -0,0 +1,119 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests for {@link KeystreamPipeline}: its output must equal XORing with one
+ * large squeeze, and a failure on the producer thread must reach the caller
+ * instead of leaving it waiting for keystream.
+ */
+public class KeystreamPipelineTest {
+
+    /**
+     * The pipeline's block size, so the sizes below sit on its boundaries.
+     */
+    private static final int BLOCK_SIZE = KeystreamPipeline.BLOCK_SIZE;
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        //defaults
+        long seed = System.nanoTime();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed":
+                    if (++i < args.length) {
+                        seed = Long.parseLong(args[i]);
+                    }
+                    break;
+                case "--help":
+                    System.out.println("Usage: java KeystreamPipelineTest [--seed s]\n"
+                        + "--seed s: seed for the random data (default: time based)");
+                    return;
+            }
+        }
+
+        System.out.println("Keystream Pipeline Test (seed " + seed + ")\n");
+
+        Random random = new Random(seed);
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // More blocks than the ring holds, so blocks are reused
+            int[] sizes = { 0, 1, 7, BLOCK_SIZE - 1, BLOCK_SIZE, BLOCK_SIZE + 1, 6 * BLOCK_SIZE + 13 };
+            for (int size : sizes) {
+                byte[] data = new byte[size];
+                random.nextBytes(data);
+                byte[] key = new byte[128];
+                random.nextBytes(key);
+
+                byte[] expected = data.clone();
+                byte[] mask = keyed(key).squeeze(size);
+                for (int i = 0; i < size; i++) {
+                    expected[i] ^= mask[i];
+                }
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                long total = await(executor, keyed(key), data, out);
+                if (total != size || !Arrays.equals(expected, out.toByteArray())) {
+                    fail("output on " + size + " bytes differs from one large squeeze");
+                }
+            }
+
+            // An uninitialized sponge makes the first squeeze throw
+            try {
+                await(executor, new SHA3SHAKE(), new byte[1000], new ByteArrayOutputStream());
+                fail("failed producer: completed normally");
+            } catch (ExecutionException e) {
+                if (!(e.getCause() instanceof IOException)
+                        || !(e.getCause().getCause() instanceof IllegalStateException)) {
+                    fail("failed producer: threw " + e.getCause());
+                }
+            } catch (TimeoutException e) {
+                fail("failed producer: caller never returned");
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Run the pipeline on another thread, so a caller stuck waiting for
+     * keystream shows up as a timeout rather than hanging the test.
+     */
+    private static long await(ExecutorService executor, SHA3SHAKE keystream, byte[] data,
+            ByteArrayOutputStream out) throws Exception {
+        Future<Long> result = executor.submit(
+                () -> KeystreamPipeline.xor(keystream, new ByteArrayInputStream(data), out));
+        try {
+            return result.get(30, TimeUnit.SECONDS);
+        } finally {
+            result.cancel(true);
+        }
+    }
+
+    private static SHA3SHAKE keyed(byte[] key) {
+        SHA3SHAKE sponge = new SHA3SHAKE();
+        sponge.init(128);
+        sponge.absorb(key);
+        return sponge;
+    }
+
+    private static void fail(String message) {
+        failures++;
+        System.out.println(message);
+    }
+}
@@ -1,7 +1,19 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PrintWriter;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 public class Main {
     /**
@@ -9,6 +21,22 @@ public class Main {
      */
     private static final SecureRandom RANDOM = new SecureRandom();
 
+    /**
+     * Derived keys and keyed sponges, reused by every command run in this JVM.
+     * Size and lifetime are set with -Dsha3.keycache.size and
+     * -Dsha3.keycache.ttl (seconds).
+     */
+    private static final KeyCache KEYS = new KeyCache(
+            Integer.getInteger("sha3.keycache.size", 64), Long.getLong("sha3.keycache.ttl", 300));
+
+    /**
+     * Inputs to encrypt and decrypt at least this large (in bytes) are streamed
+     * through a {@link KeystreamPipeline} instead of being read into memory.
+     * Below about 8 MiB starting the producer thread costs more than it saves.
+     * Set with -Dsha3.pipeline.threshold.
+     */
+    private static final long PIPELINE_THRESHOLD = Long.getLong("sha3.pipeline.threshold", 8 << 20);
+
     /**
      * Compute the hash of the input data using SHA-3.
      */
@@ -16,9 +44,8 @@ public class Main {
         try (FileInputStream fileInput = new FileInputStream(inputPath);
         FileOutputStream fileOutput = new FileOutputStream(outPath)) {
 
-            byte[] data = fileInput.readAllBytes();
-
-            byte[] hash = SHA3SHAKE.SHA3(securityLevel, data, null);
+            List<MultiHasher.Algorithm> algorithms = List.of(MultiHasher.Algorithm.sha3(securityLevel));
+            byte[] hash = MultiHasher.digest(fileInput, algorithms)[0];
 
             fileOutput.write(hash);
         } catch (IOException e) {
@@ -26,25 +53,63 @@ public class Main {
         }
     }
 
+    /**
+     * Compute several SHA-3/SHAKE outputs over the input in a single read and
+     * write them as a manifest with one "ALGORITHM (file) = hex" line each.
+     */
+    private static void computeHashes(String inputPath, String outPath,
+            List<MultiHasher.Algorithm> algorithms) {
+        try (FileInputStream fileInput = new FileInputStream(inputPath);
+                PrintWriter manifestOutput = new PrintWriter(outPath)) {
+
+            byte[][] outputs = MultiHasher.digest(fileInput, algorithms);
+
+            for (int i = 0; i < outputs.length; i++) {
+                manifestOutput.println(algorithms.get(i) + " (" + inputPath + ") = " + toHex(outputs[i]));
+            }
+        } catch (IOException e) {
+            System.out.println("Hashing failed: " + e);
+        }
+    }
+
+    /**
+     * Compute one SHA-3 digest per record of the input and write them in record
+     * order, raw or as hex lines.
+     */
+    private static void computeRecordHashes(String inputPath, String outPath, int securityLevel,
+            RecordHasher.Format format, boolean hex) {
+        try (OutputStream output = new BufferedOutputStream(new FileOutputStream(outPath), 1 << 16)) {
+            RecordHasher.hash(Path.of(inputPath), securityLevel, format, hex, output);
+        } catch (IOException e) {
+            System.out.println("Hashing failed: " + e);
+        }
+    }
+
     /**
      * Compute the MAC of the input data using SHA-3.
      */
     private static void computeMAC(String inputPath, String outPath, int securityLevel,
             String passphrase, int macLength) {
-        try (FileInputStream fileInput = new FileInputStream(inputPath);
+        try (FileChannel fileInput = FileChannel.open(Path.of(inputPath), StandardOpenOption.READ);
             FileOutputStream fileOutput = new FileOutputStream(outPath)) {
 
             byte[] passphraseBytes = passphrase.getBytes();
-            byte[] data = fileInput.readAllBytes();
 
-            SHA3SHAKE sponge = new SHA3SHAKE();
-            sponge.init(securityLevel);
-            sponge.absorb(passphraseBytes);
-            sponge.absorb(data);
+            // passphrase || data || "T", streamed from the file with scattering reads
+            SHA3SHAKE sponge = KEYS.sponge("mac-" + securityLevel, passphraseBytes, p -> {
+                SHA3SHAKE keyed = new SHA3SHAKE();
+                keyed.init(securityLevel);
+                keyed.absorb(p);
+                return keyed;
+            });
+            sponge.absorb(fileInput);
             sponge.absorb("T".getBytes());
             byte[] result = sponge.squeeze(macLength);
+            sponge.wipe();
 
+            long io = SpongeStats.ioStart();
             fileOutput.write(result);
+            SpongeStats.ioDone(io);
         } catch (IOException e) {
             System.out.println("Failed to compute MAC: " + e);
         }
@@ -52,11 +117,13 @@ public class Main {
 
     /**
      * Encrypt the input data using XOR with a key derived from the passphrase.
+     * With envelope set, a random data key is used instead and written, wrapped
+     * under the passphrase, in a header before the usual nonce and ciphertext.
      * 
      * @throws IOException if an I/O error occurs
      */
     private static void encrypt(String inputPath, String outPath,
-            String passphrase) {
+            String passphrase, boolean envelope) {
 
         // reads the raw bytes directly, preserving the exact data without any text
         // interpretation.
@@ -64,9 +131,14 @@ public class Main {
                 FileOutputStream fileOutput = new FileOutputStream(outPath)) {
 
             byte[] passphraseBytes = passphrase.getBytes();
-            byte[] data = fileInput.readAllBytes();
-
-            byte[] key = SHA3SHAKE.SHAKE(128, passphraseBytes, 128, null);
+            byte[] header = null;
+            byte[] key;
+            if (envelope) {
+                key = Envelope.newDataKey();
+                header = Envelope.wrap(key, passphraseBytes);
+            } else {
+                key = deriveKey(passphraseBytes);
+            }
             byte[] nonce = new byte[16];
             RANDOM.nextBytes(nonce);
 
@@ -74,14 +146,34 @@ public class Main {
             sponge.init(128);
             sponge.absorb(nonce);
             sponge.absorb(key);
+            Arrays.fill(key, (byte) 0);
+
+            long io = SpongeStats.ioStart();
+            if (header != null) {
+                fileOutput.write(header);
+            }
+            fileOutput.write(nonce);
+            SpongeStats.ioDone(io);
+
+            // large inputs: squeeze the keystream on another thread while
+            // this one reads, XORs and writes
+            if (fileInput.getChannel().size() >= PIPELINE_THRESHOLD) {
+                KeystreamPipeline.xor(sponge, fileInput, fileOutput);
+                return;
+            }
+
+            io = SpongeStats.ioStart();
+            byte[] data = fileInput.readAllBytes();
+            SpongeStats.ioDone(io);
 
             byte[] mask = sponge.squeeze(data.length);
             for (int i = 0; i < data.length; i++) {
                 data[i] ^= mask[i];
             }
 
-            fileOutput.write(nonce);
+            io = SpongeStats.ioStart();
             fileOutput.write(data);
+            SpongeStats.ioDone(io);
         } catch (IOException e) {
             System.out.println("Encryption failed: " + e);
         }
@@ -89,39 +181,314 @@ public class Main {
 
     /**
      * Decrypt the input ciphertext using XOR with a key derived from the
-     * passphrase.
+     * passphrase, or with the data key unwrapped from the header if envelope
+     * is set.
      * 
      * @throws IOException
      */
     private static void decrypt(String inputPath, String outPath,
-            String passphrase) {
+            String passphrase, boolean envelope) {
+
+        byte[] passphaseBytes = passphrase.getBytes();
+        byte[] key;
+        try {
+            // the header is checked before the output is created, so a wrong
+            // passphrase leaves no empty file behind
+            key = envelope ? Envelope.unwrap(Path.of(inputPath), passphaseBytes) : deriveKey(passphaseBytes);
+        } catch (IOException e) {
+            System.out.println("Decryption failed: " + e);
+            return;
+        }
 
         try (FileInputStream fileInput = new FileInputStream(inputPath);
                 FileOutputStream fileOutput = new FileOutputStream(outPath)) {
 
-            byte[] passphaseBytes = passphrase.getBytes();
+            long io = SpongeStats.ioStart();
+            if (envelope) {
+                fileInput.skipNBytes(Envelope.HEADER_LENGTH);
+            }
             byte[] nonce = fileInput.readNBytes(16);
-            byte[] ciphertext = fileInput.readAllBytes();
-
-            byte[] key = SHA3SHAKE.SHAKE(128, passphaseBytes, 128, null);
+            SpongeStats.ioDone(io);
 
             SHA3SHAKE sponge = new SHA3SHAKE();
             sponge.init(128);
             sponge.absorb(nonce);
             sponge.absorb(key);
+            Arrays.fill(key, (byte) 0);
+
+            // large inputs: squeeze the keystream on another thread while
+            // this one reads, XORs and writes
+            FileChannel channel = fileInput.getChannel();
+            if (channel.size() - channel.position() >= PIPELINE_THRESHOLD) {
+                KeystreamPipeline.xor(sponge, fileInput, fileOutput);
+                return;
+            }
+
+            io = SpongeStats.ioStart();
+            byte[] ciphertext = fileInput.readAllBytes();
+            SpongeStats.ioDone(io);
 
             byte[] mask = sponge.squeeze(ciphertext.length);
             for (int i = 0; i < ciphertext.length; i++) {
                 ciphertext[i] ^= mask[i];
             }
 
+            io = SpongeStats.ioStart();
             fileOutput.write(ciphertext);
+            SpongeStats.ioDone(io);
         } catch (IOException e) {
             System.out.println("Decryption failed: " + e);
         }
     }
 
+    /**
+     * Change the passphrase of an envelope-encrypted file, rewriting only its
+     * header.
+     */
+    private static void rekey(String filePath, String oldPassphrase, String newPassphrase) {
+        try {
+            Envelope.rekey(Path.of(filePath), oldPassphrase.getBytes(), newPassphrase.getBytes());
+        } catch (IOException e) {
+            System.out.println("Rekeying failed: " + e);
+        }
+    }
+
+    /**
+     * The encryption key for a passphrase: 128 bytes of SHAKE128 output, taken
+     * from the key cache when the passphrase was used before.
+     */
+    private static byte[] deriveKey(byte[] passphrase) {
+        return KEYS.key("encrypt", passphrase, p -> SHA3SHAKE.SHAKE(128, p, 128, null));
+    }
+
+    /**
+     * Run one command per line from a file, or from standard input if the path
+     * is "-", in this JVM. Derived keys stay in the key cache between commands,
+     * so a long list of files under the same passphrase only derives the key
+     * once. Reading from standard input keeps the process running for as long
+     * as commands arrive, which makes it usable as a daemon behind a pipe.
+     */
+    private static void runBatch(String commandsPath) {
+        try (BufferedReader reader = commandsPath.equals("-")
+                ? new BufferedReader(new InputStreamReader(System.in))
+                : Files.newBufferedReader(Path.of(commandsPath))) {
+
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                // a failing command is reported and the batch goes on
+                try {
+                    List<String> command = splitCommand(trimmed);
+                    if (command.get(0).equals("batch")) {
+                        System.out.println("Line " + lineNumber + ": batch cannot be nested.");
+                    } else {
+                        run(command.toArray(new String[0]));
+                    }
+                } catch (IOException | RuntimeException e) {
+                    System.out.println("Line " + lineNumber + " failed: " + e);
+                }
+                System.out.flush();
+            }
+        } catch (IOException e) {
+            System.out.println("Batch failed: " + e);
+        } finally {
+            KEYS.clear();
+        }
+    }
+
+    /**
+     * Split a command line on whitespace. Double quotes group an argument that
+     * contains spaces, such as a passphrase.
+     */
+    private static List<String> splitCommand(String line) {
+        List<String> words = new ArrayList<>();
+        StringBuilder word = new StringBuilder();
+        boolean quoted = false;
+        boolean inWord = false;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (c == '"') {
+                quoted = !quoted;
+                inWord = true;
+            } else if (Character.isWhitespace(c) && !quoted) {
+                if (inWord) {
+                    words.add(word.toString());
+                    word.setLength(0);
+                    inWord = false;
+                }
+            } else {
+                word.append(c);
+                inWord = true;
+            }
+        }
+        if (quoted) {
+            throw new IllegalArgumentException("Unterminated quote in \"" + line + "\"");
+        }
+        if (inWord) {
+            words.add(word.toString());
+        }
+        return words;
+    }
+
+    /**
+     * Encrypt every file under a directory into one container.
+     */
+    private static void pack(String inputDir, String outPath, String passphrase) {
+        byte[] key = deriveKey(passphrase.getBytes());
+        try {
+            Container.pack(Path.of(inputDir), Path.of(outPath), key);
+        } catch (IOException | IllegalArgumentException e) {
+            System.out.println("Packing failed: " + e);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypt every entry of a container into a directory.
+     */
+    private static void unpack(String inputPath, String outDir, String passphrase) {
+        byte[] key = deriveKey(passphrase.getBytes());
+        try {
+            Container.unpack(Path.of(inputPath), Path.of(outDir), key);
+        } catch (IOException e) {
+            System.out.println("Unpacking failed: " + e);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Decrypt a single entry of a container.
+     */
+    private static void extract(String inputPath, String outPath, String passphrase, String name) {
+        byte[] key = deriveKey(passphrase.getBytes());
+        try {
+            Container.extract(Path.of(inputPath), name, Path.of(outPath), key);
+        } catch (IOException e) {
+            System.out.println("Extraction failed: " + e);
+        } finally {
+            Arrays.fill(key, (byte) 0);
+        }
+    }
+
+    /**
+     * Split the input into content-defined chunks and write an index with the
+     * offset, length and SHA3-256 digest of every chunk, one chunk per line.
+     */
+    private static void computeChunks(String inputPath, String outPath) {
+        try (FileInputStream fileInput = new FileInputStream(inputPath);
+                PrintWriter indexOutput = new PrintWriter(outPath)) {
+
+            new ContentChunker().chunk(fileInput).forEach(chunk -> indexOutput.println(
+                    chunk.offset + " " + chunk.length + " " + toHex(chunk.digest)));
+        } catch (IOException e) {
+            System.out.println("Chunking failed: " + e);
+        }
+    }
+
+    /**
+     * Build a Merkle tree over the input and save it. When updating, the saved
+     * tree is loaded and only the changed byte range is rehashed.
+     */
+    private static void computeMerkleTree(String inputPath, String outPath,
+            long updateOffset, long updateLength) {
+        try {
+            Path input = Path.of(inputPath);
+            Path treeFile = Path.of(outPath);
+            if (updateOffset >= 0 && Files.exists(treeFile)) {
+                // rewrites only the nodes on the changed paths
+                System.out.println(toHex(MerkleTree.update(treeFile, input, updateOffset, updateLength)));
+                return;
+            }
+            MerkleTree tree = MerkleTree.build(input);
+            tree.save(treeFile);
+            System.out.println(toHex(tree.root()));
+        } catch (IOException e) {
+            System.out.println("Merkle tree hashing failed: " + e);
+        }
+    }
+
+    /**
+     * Find files with identical contents under a directory. Every group is
+     * written as "hex  path" lines followed by a blank line, to the output file
+     * or to standard output, and a summary is printed.
+     */
+    private static void findDuplicates(String dirPath, String outPath) {
+        try {
+            DuplicateFinder.Result result = DuplicateFinder.find(Path.of(dirPath));
+
+            try (PrintWriter groupOutput = outPath == null
+                    ? new PrintWriter(System.out, false)
+                    : new PrintWriter(outPath)) {
+                for (DuplicateFinder.Group group : result.groups) {
+                    String hex = toHex(group.digest);
+                    for (Path file : group.files) {
+                        groupOutput.println(hex + "  " + file);
+                    }
+                    groupOutput.println();
+                }
+                groupOutput.flush();
+            }
+
+            for (String error : result.errors) {
+                System.out.println("Skipped " + error);
+            }
+            System.out.println(result.groups.size() + " groups of duplicates, "
+                    + result.reclaimableBytes() + " bytes reclaimable (" + result.filesScanned
+                    + " files scanned, " + result.samplesHashed + " sampled, " + result.filesHashed
+                    + " hashed in full, " + result.bytesRead + " bytes read)");
+        } catch (IOException e) {
+            System.out.println("Duplicate search failed: " + e);
+        }
+    }
+
     public static void main(String[] args) throws IOException {
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean stats = arguments.remove("--stats");
+        if (stats) {
+            SpongeStats.enable();
+        }
+        args = arguments.toArray(new String[0]);
+
+        long start = System.nanoTime();
+        long allocated = stats ? SpongeStats.allocatedBytes() : -1;
+
+        if (SpongeStats.JFR) {
+            runRecorded(args);
+        } else {
+            run(args);
+        }
+
+        if (stats && args.length > 0) {
+            long allocatedBytes = allocated < 0 ? -1 : SpongeStats.allocatedBytes() - allocated;
+            System.out.println(SpongeStats.report(args[0], System.nanoTime() - start, allocatedBytes));
+        }
+    }
+
+    /**
+     * Run a command inside a sha3.Service JFR event.
+     */
+    private static void runRecorded(String[] args) throws IOException {
+        SpongeStats.ServiceEvent event = new SpongeStats.ServiceEvent();
+        event.begin();
+        run(args);
+        event.end();
+        if (event.shouldCommit()) {
+            event.service = args.length > 0 ? args[0] : "";
+            event.commit();
+        }
+    }
+
+    /**
+     * Parse the arguments of one command and run the requested service.
+     */
+    private static void run(String[] args) throws IOException {
         String service = args[0];
 
         for (int i = 0; i < args.length; i++) {
@@ -130,7 +497,9 @@ public class Main {
                     switch (service) {
                         case "hash":
                             System.out.println(
-                                "Usage: \n\t java Main.java hash <input_file> <output_file> <security_level> [options]\n\n"
+                                "Usage: \n\t java Main.java hash <input_file> <output_file> <security_level> [options]\n"
+                                + "\t java Main.java hash <input_file> <output_file> --algo <algorithms>\n"
+                                + "\t java Main.java hash <input_file> <output_file> <security_level> --per-record <format> [--hex]\n\n"
                                 + "Description: \n"
                                 + "\tHash the provided message.\n"
                                 + "\nArguments: \n"
@@ -138,6 +507,13 @@ public class Main {
                                 + "\toutput_file: Path to the output file.\n"
                                 + "\tsecurity_level: One of 224, 256, 384, or 512. \n"
                                 + "\nOptions: \n"
+                                + "\t--algo <algorithms>: Comma-separated list of sha3-<224|256|384|512> and\n"
+                                + "\t\tshake<128|256>[:<bytes>], e.g. sha3-256,sha3-512,shake256:64. The input is\n"
+                                + "\t\tread once and a manifest with one line per algorithm is written.\n"
+                                + "\t--per-record <format>: Write one digest per record instead of one per file.\n"
+                                + "\t\tFormat is newline (records end with \\n) or u32-prefix (each record is\n"
+                                + "\t\tpreceded by its 4-byte big-endian length). Digests are written back to back.\n"
+                                + "\t--hex: With --per-record, write one hex digest per line instead.\n"
                                 + "\t--help: Show help.\n"
                             );
                             return;
@@ -166,6 +542,8 @@ public class Main {
                                 + "\toutput_file: Path to the output file. \n"
                                 + "\tpassphrase: Passphrase to encrypt with. \n"
                                 + "\nOptions: \n"
+                                + "\t--envelope: Encrypt under a random data key wrapped with the passphrase, so\n"
+                                + "\t\tthe passphrase can later be changed with rekey.\n"
                                 + "\t--help: Show help.\n"
                             );
                             return;
@@ -179,6 +557,119 @@ public class Main {
                                 + "\toutput_file: Path to the output file. \n"
                                 + "\tpassphrase: Passphrase to decrypt with. \n"
                                 + "\nOptions: \n"
+                                + "\t--envelope: Decrypt a file written by encrypt --envelope.\n"
+                                + "\t--help: Show help.\n"
+                            );
+                            return;
+                        case "rekey":
+                            System.out.println(
+                                "Usage: \n\t java Main.java rekey <file> <old_passphrase> <new_passphrase> [options]\n\n"
+                                + "Description: \n"
+                                + "\tChange the passphrase of a file written by encrypt --envelope. Only the\n"
+                                + "\theader is rewritten, in place.\n"
+                                + "\nArguments: \n"
+                                + "\tfile: Path to the encrypted file.\n"
+                                + "\told_passphrase: Current passphrase. \n"
+                                + "\tnew_passphrase: New passphrase. \n"
+                                + "\nOptions: \n"
+                                + "\t--help: Show help.\n"
+                            );
+                            return;
+                        case "chunk":
+                            System.out.println(
+                                "Usage: \n\t java Main.java chunk <input_file> <output_file> [options]\n\n"
+                                + "Description: \n"
+                                + "\tSplit the provided file into content-defined chunks and write a chunk index.\n"
+                                + "\tEach line of the index holds a chunk's offset, length and SHA3-256 digest.\n"
+                                + "\nArguments: \n"
+                                + "\tinput_file: Path to the input file.\n"
+                                + "\toutput_file: Path to the chunk index. \n"
+                                + "\nOptions: \n"
+                                + "\t--help: Show help.\n"
+                            );
+                            return;
+                        case "merkle":
+                            System.out.println(
+                                "Usage: \n\t java Main.java merkle <input_file> <output_file> [options]\n\n"
+                                + "Description: \n"
+                                + "\tBuild a SHA3-256 Merkle tree over the provided file, save it and print the root.\n"
+                                + "\nArguments: \n"
+                                + "\tinput_file: Path to the input file.\n"
+                                + "\toutput_file: Path to the tree file. \n"
+                                + "\nOptions: \n"
+                                + "\t--update <offset> <length>: Load the existing tree file and only rehash the\n"
+                                + "\t\tleaves covering the changed byte range.\n"
+                                + "\t--help: Show help.\n"
+                            );
+                            return;
+                        case "pack":
+                            System.out.println(
+                                "Usage: \n\t java Main.java pack <input_dir> <output_file> <passphrase> [options]\n\n"
+                                + "Description: \n"
+                                + "\tEncrypt every file under a directory into a single container. Each file gets\n"
+                                + "\tits own keystream and the container ends with an encrypted index.\n"
+                                + "\nArguments: \n"
+                                + "\tinput_dir: Directory to pack.\n"
+                                + "\toutput_file: Path to the container. \n"
+                                + "\tpassphrase: Passphrase to encrypt with. \n"
+                                + "\nOptions: \n"
+                                + "\t--help: Show help.\n"
+                            );
+                            return;
+                        case "unpack":
+                            System.out.println(
+                                "Usage: \n\t java Main.java unpack <input_file> <output_dir> <passphrase> [options]\n\n"
+                                + "Description: \n"
+                                + "\tDecrypt every file of a container into a directory.\n"
+                                + "\nArguments: \n"
+                                + "\tinput_file: Path to the container.\n"
+                                + "\toutput_dir: Directory to write the files to. \n"
+                                + "\tpassphrase: Passphrase to decrypt with. \n"
+                                + "\nOptions: \n"
+                                + "\t--help: Show help.\n"
+                            );
+                            return;
+                        case "extract":
+                            System.out.println(
+                                "Usage: \n\t java Main.java extract <input_file> <output_file> <passphrase> <name> [options]\n\n"
+                                + "Description: \n"
+                                + "\tDecrypt a single file of a container, reading only the index and that file.\n"
+                                + "\nArguments: \n"
+                                + "\tinput_file: Path to the container.\n"
+                                + "\toutput_file: Path to write the file to. \n"
+                                + "\tpassphrase: Passphrase to decrypt with. \n"
+                                + "\tname: Path of the file inside the packed directory, with / separators. \n"
+                                + "\nOptions: \n"
+                                + "\t--help: Show help.\n"
+                            );
+                            return;
+                        case "batch":
+                            System.out.println(
+                                "Usage: \n\t java Main.java batch <commands_file> [options]\n"
+                                + "\t java Main.java batch - [options]\n\n"
+                                + "Description: \n"
+                                + "\tRun one command per line in a single JVM, e.g. \"encrypt a.txt a.enc secret\".\n"
+                                + "\tKeys derived from a passphrase are cached between commands.\n"
+                                + "\tBlank lines and lines starting with # are skipped; use double quotes for\n"
+                                + "\targuments containing spaces.\n"
+                                + "\nArguments: \n"
+                                + "\tcommands_file: Path to the command list, or - to read commands from standard\n"
+                                + "\t\tinput until it is closed.\n"
+                                + "\nOptions: \n"
+                                + "\t--help: Show help.\n"
+                            );
+                            return;
+                        case "dedupe":
+                            System.out.println(
+                                "Usage: \n\t java Main.java dedupe <directory> [output_file] [options]\n\n"
+                                + "Description: \n"
+                                + "\tFind files with identical contents under a directory. Files are grouped by\n"
+                                + "\tsize, then by SHA3-256 of their first and last 64 KiB, and only files that\n"
+                                + "\tstill collide are hashed in full.\n"
+                                + "\nArguments: \n"
+                                + "\tdirectory: Directory to search. Symbolic links are not followed.\n"
+                                + "\toutput_file: Where to write the groups (default: standard output). \n"
+                                + "\nOptions: \n"
                                 + "\t--help: Show help.\n"
                             );
                             return;
@@ -190,8 +681,18 @@ public class Main {
                                 + "\tmac: Compute the MAC for a message.\n"
                                 + "\tencrypt: Encrypt a message under a passphrase.\n"
                                 + "\tdecrypt: Decrypt a message under a passphrase.\n"
+                                + "\trekey: Change the passphrase of an envelope-encrypted file.\n"
+                                + "\tchunk: Write a content-defined chunk index for a file.\n"
+                                + "\tmerkle: Build or update a Merkle tree for a file.\n"
+                                + "\tdedupe: Find duplicate files under a directory.\n"
+                                + "\tpack: Encrypt a directory into a single container.\n"
+                                + "\tunpack: Decrypt a container into a directory.\n"
+                                + "\textract: Decrypt a single file from a container.\n"
+                                + "\tbatch: Run a list of commands, reusing derived keys.\n"
                                 + "\nGeneral Options: \n"
                                 + "\t--help: Show help.\n"
+                                + "\t--stats: Print permutation counts, throughput, cycles per byte, the split\n"
+                                + "\t\tbetween I/O and hashing time, and allocation as JSON.\n"
                             );
                             return;
                     }   
@@ -200,7 +701,25 @@ public class Main {
 
         if (!isValidService(service)) {
             System.out.println("Invalid service: \"" + service +
-                    "\". Must be one of hash, mac, encrypt, or decrypt.");
+                    "\". Must be one of hash, mac, encrypt, decrypt, chunk, merkle, dedupe, pack, unpack, extract, rekey, or batch.");
+            return;
+        }
+
+        if (service.equals("batch")) {
+            if (args.length != 2) {
+                System.out.println("Usage: java Main.java batch <commands_file|->");
+                return;
+            }
+            runBatch(args[1]);
+            return;
+        }
+
+        if (service.equals("dedupe")) {
+            if (args.length != 2 && args.length != 3) {
+                System.out.println("Usage: java Main.java dedupe <directory> [output_file]");
+                return;
+            }
+            findDuplicates(args[1], args.length == 3 ? args[2] : null);
             return;
         }
         
@@ -214,8 +733,19 @@ public class Main {
 
         try {
             if (service.equals("hash")) {
-                if (args.length != 4) {
-                    System.out.println("Usage: java Main.java hash <input_file> <output_file> <security_level>");
+                if (args.length == 5 && args[3].equals("--algo")) {
+                    try {
+                        computeHashes(inPath, outPath, MultiHasher.Algorithm.parseList(args[4]));
+                    } catch (IllegalArgumentException e) {
+                        System.out.println(e.getMessage());
+                    }
+                    return;
+                }
+                boolean perRecord = (args.length == 6 || args.length == 7) && args[4].equals("--per-record")
+                        && (args.length == 6 || args[6].equals("--hex"));
+                if (args.length != 4 && !perRecord) {
+                    System.out.println("Usage: java Main.java hash <input_file> <output_file> <security_level>"
+                            + " [--per-record <newline|u32-prefix> [--hex]]");
                     return;
                 }
                 int securityLevel = Integer.parseInt(args[3]);
@@ -224,6 +754,17 @@ public class Main {
                             + "\". Must be one of one of 224, 256, 384, or 512.");
                     return;
                 }
+                if (perRecord) {
+                    RecordHasher.Format format;
+                    try {
+                        format = RecordHasher.Format.parse(args[5]);
+                    } catch (IllegalArgumentException e) {
+                        System.out.println(e.getMessage());
+                        return;
+                    }
+                    computeRecordHashes(inPath, outPath, securityLevel, format, args.length == 7);
+                    return;
+                }
                 computeHash(inPath, outPath, securityLevel);
             } else if (service.equals("mac")) {
                 if (args.length != 6) {
@@ -246,17 +787,58 @@ public class Main {
 
                 computeMAC(inPath, outPath, securityLevel, args[3], macLength);
             } else if (service.equals("encrypt")) {
-                if (args.length != 4) {
-                    System.out.println("Usage: java Main.java encrypt <input_file> <output_file> <passphrase>");
+                boolean envelope = args.length == 5 && args[4].equals("--envelope");
+                if (args.length != 4 && !envelope) {
+                    System.out.println("Usage: java Main.java encrypt <input_file> <output_file> <passphrase> [--envelope]");
                     return;
                 }
-                encrypt(inPath, outPath, args[3]);
+                encrypt(inPath, outPath, args[3], envelope);
             } else if (service.equals("decrypt")) {
+                boolean envelope = args.length == 5 && args[4].equals("--envelope");
+                if (args.length != 4 && !envelope) {
+                    System.out.println("Usage: java Main.java decrypt <input_file> <output_file> <passphrase> [--envelope]");
+                    return;
+                }
+                decrypt(inPath, outPath, args[3], envelope);
+            } else if (service.equals("rekey")) {
                 if (args.length != 4) {
-                    System.out.println("Usage: java Main.java decrypt <input_file> <output_file> <passphrase>");
+                    System.out.println("Usage: java Main.java rekey <file> <old_passphrase> <new_passphrase>");
                     return;
                 }
-                decrypt(inPath, outPath, args[3]);
+                rekey(args[1], args[2], args[3]);
+            } else if (service.equals("chunk")) {
+                if (args.length != 3) {
+                    System.out.println("Usage: java Main.java chunk <input_file> <output_file>");
+                    return;
+                }
+                computeChunks(inPath, outPath);
+            } else if (service.equals("merkle")) {
+                if (args.length == 3) {
+                    computeMerkleTree(inPath, outPath, -1, 0);
+                } else if (args.length == 6 && args[3].equals("--update")) {
+                    computeMerkleTree(inPath, outPath, Long.parseLong(args[4]), Long.parseLong(args[5]));
+                } else {
+                    System.out.println(
+                            "Usage: java Main.java merkle <input_file> <output_file> [--update <offset> <length>]");
+                }
+            } else if (service.equals("pack")) {
+                if (args.length != 4) {
+                    System.out.println("Usage: java Main.java pack <input_dir> <output_file> <passphrase>");
+                    return;
+                }
+                pack(inPath, outPath, args[3]);
+            } else if (service.equals("unpack")) {
+                if (args.length != 4) {
+                    System.out.println("Usage: java Main.java unpack <input_file> <output_dir> <passphrase>");
+                    return;
+                }
+                unpack(inPath, outPath, args[3]);
+            } else if (service.equals("extract")) {
+                if (args.length != 5) {
+                    System.out.println("Usage: java Main.java extract <input_file> <output_file> <passphrase> <name>");
+                    return;
+                }
+                extract(inPath, outPath, args[3], args[4]);
             }
         } catch (NumberFormatException e) {
             System.out.println("Invalid number format: " + e.getMessage());
@@ -265,11 +847,25 @@ public class Main {
 
     private static boolean isValidService(String service) {
         return (service.equals("hash") || service.equals("mac") ||
-                service.equals("encrypt") || service.equals("decrypt"));
+                service.equals("encrypt") || service.equals("decrypt") ||
+                service.equals("chunk") || service.equals("merkle") ||
+                service.equals("dedupe") || service.equals("pack") ||
+                service.equals("unpack") || service.equals("extract") ||
+                service.equals("rekey") ||
+                service.equals("batch"));
     }
 
     private static boolean isValidSecurityLevel(int securityLevel) {
         return (securityLevel == 224) || (securityLevel == 256) ||
                 (securityLevel == 384) || (securityLevel == 512);
     }
-}
\ No newline at end of file
+
+    private static String toHex(byte[] bytes) {
+        StringBuilder sb = new StringBuilder(2 * bytes.length);
+        for (byte b : bytes) {
+            sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+            sb.append(Character.forDigit(b & 0xF, 16));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,551 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * The MerkleTree class hashes a file as a binary tree of SHA3-256 digests.
+ *
+ * The file is split into fixed-size leaves which are hashed independently (and
+ * in parallel). Each internal node is the hash of its two children, and a node
+ * without a right sibling is promoted to the next level unchanged. Because
+ * every node only depends on the leaves below it, changing a range of the file
+ * only requires rehashing those leaves and their paths up to the root.
+ *
+ * Leaves and internal nodes are hashed with different one-byte prefixes, so a
+ * leaf can never be passed off as an internal node.
+ */
+public class MerkleTree {
+
+    /**
+     * Default leaf size in bytes.
+     */
+    public static final int DEFAULT_LEAF_SIZE = 4096;
+
+    /**
+     * Length of every node in bytes (SHA3-256).
+     */
+    public static final int HASH_LENGTH = 32;
+
+    /**
+     * Magic number at the start of a saved tree ("SMT1").
+     */
+    private static final int MAGIC = 0x534d5431;
+
+    /**
+     * Length of the header of a saved tree: magic, leaf size and leaf count.
+     */
+    private static final int HEADER_LENGTH = 12;
+
+    private static final byte LEAF_PREFIX = 0x00;
+    private static final byte NODE_PREFIX = 0x01;
+
+    /**
+     * Number of leaves hashed by one parallel task.
+     */
+    private static final int LEAVES_PER_TASK = 256;
+
+    /**
+     * Number of internal nodes hashed by one parallel task.
+     */
+    private static final int NODES_PER_TASK = 4096;
+
+    private final int leafSize;
+
+    /**
+     * Node hashes, one array per level. levels[0] holds the leaves and the last
+     * level holds the root. Arrays may be longer than the level to leave room
+     * for appends.
+     */
+    private byte[][] levels;
+
+    /**
+     * Number of nodes on each level.
+     */
+    private int[] counts;
+
+    private MerkleTree(int leafSize, int leafCount) {
+        this.leafSize = leafSize;
+        resize(leafCount);
+    }
+
+    /**
+     * Build the tree for a file using the default leaf size.
+     *
+     * @param file file to be hashed
+     * @return the tree
+     * @throws IOException if the file cannot be read
+     */
+    public static MerkleTree build(Path file) throws IOException {
+        return build(file, DEFAULT_LEAF_SIZE);
+    }
+
+    /**
+     * Build the tree for a file. Leaves are read and hashed in parallel.
+     *
+     * @param file     file to be hashed
+     * @param leafSize number of file bytes per leaf
+     * @return the tree
+     * @throws IOException if the file cannot be read
+     */
+    public static MerkleTree build(Path file, int leafSize) throws IOException {
+        if (leafSize <= 0) {
+            throw new IllegalArgumentException("Leaf size must be greater than zero");
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            MerkleTree tree = new MerkleTree(leafSize, leafCountFor(size, leafSize));
+            tree.rehash(channel, size, 0, tree.counts[0] - 1);
+            return tree;
+        }
+    }
+
+    /**
+     * Bring the tree up to date after a range of the file has been rewritten
+     * or appended to. Only the affected leaves and their paths to the root are
+     * rehashed.
+     *
+     * @param file   the file this tree was built from
+     * @param offset first byte that changed
+     * @param length number of bytes that changed
+     * @throws IOException if the file cannot be read
+     */
+    public void update(Path file, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid offset or length parameters");
+        }
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            int oldLeafCount = counts[0];
+            int newLeafCount = leafCountFor(size, leafSize);
+
+            int first = (int) Math.min(offset / leafSize, newLeafCount - 1);
+            int last = length == 0 ? first
+                    : (int) Math.min((offset + length - 1) / leafSize, newLeafCount - 1);
+
+            if (newLeafCount != oldLeafCount) {
+                resize(newLeafCount);
+                // The old last leaf may have been partial, and every leaf past
+                // it is new.
+                first = Math.min(first, Math.min(oldLeafCount, newLeafCount) - 1);
+                last = newLeafCount - 1;
+            }
+
+            rehash(channel, size, first, last);
+        }
+    }
+
+    /**
+     * @return the root hash of the tree
+     */
+    public byte[] root() {
+        return node(levels.length - 1, 0);
+    }
+
+    /**
+     * @return the number of leaves in the tree
+     */
+    public int leafCount() {
+        return counts[0];
+    }
+
+    /**
+     * @return the number of file bytes per leaf
+     */
+    public int leafSize() {
+        return leafSize;
+    }
+
+    /**
+     * Produce an inclusion proof for a leaf: the sibling hashes on the path
+     * from the leaf to the root, bottom up. Levels where the path node has no
+     * sibling contribute nothing.
+     *
+     * @param leafIndex index of the leaf
+     * @return the sibling hashes
+     */
+    public byte[][] proof(int leafIndex) {
+        if (leafIndex < 0 || leafIndex >= counts[0]) {
+            throw new IllegalArgumentException("Leaf index out of range: " + leafIndex);
+        }
+
+        byte[][] siblings = new byte[levels.length - 1][];
+        int n = 0;
+        int index = leafIndex;
+        for (int level = 0; level < levels.length - 1; level++) {
+            int sibling = index ^ 1;
+            if (sibling < counts[level]) {
+                siblings[n++] = node(level, sibling);
+            }
+            index >>>= 1;
+        }
+        return Arrays.copyOf(siblings, n);
+    }
+
+    /**
+     * Check an inclusion proof produced by {@link #proof(int)}.
+     *
+     * @param root      expected root hash
+     * @param leafIndex index of the leaf
+     * @param leafCount number of leaves in the tree
+     * @param leafData  contents of the leaf
+     * @param proof     sibling hashes from the leaf to the root
+     * @return true if the leaf is part of the tree with the given root
+     */
+    public static boolean verify(byte[] root, int leafIndex, int leafCount, byte[] leafData,
+            byte[][] proof) {
+        if (leafIndex < 0 || leafIndex >= leafCount) {
+            return false;
+        }
+
+        byte[] hash = new byte[HASH_LENGTH];
+        hashLeaf(leafData, 0, leafData.length, hash, 0);
+
+        byte[] pair = new byte[2 * HASH_LENGTH];
+        int used = 0;
+        int index = leafIndex;
+        for (int n = leafCount; n > 1; n = (n + 1) / 2) {
+            int sibling = index ^ 1;
+            if (sibling < n) {
+                if (used == proof.length) {
+                    return false;
+                }
+                boolean left = (index & 1) == 0;
+                System.arraycopy(left ? hash : proof[used], 0, pair, 0, HASH_LENGTH);
+                System.arraycopy(left ? proof[used] : hash, 0, pair, HASH_LENGTH, HASH_LENGTH);
+                hashNode(pair, 0, hash, 0);
+                used++;
+            }
+            index >>>= 1;
+        }
+
+        return used == proof.length && Arrays.equals(hash, root);
+    }
+
+    /**
+     * Save the tree. The format is a small header (magic, leaf size, leaf
+     * count) followed by the node hashes level by level, leaves first.
+     *
+     * @param file destination
+     * @throws IOException if the file cannot be written
+     */
+    public void save(Path file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(Files.newOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(leafSize);
+            out.writeInt(counts[0]);
+            for (int level = 0; level < levels.length; level++) {
+                out.write(levels[level], 0, counts[level] * HASH_LENGTH);
+            }
+        }
+    }
+
+    /**
+     * Load a tree written by {@link #save(Path)}.
+     *
+     * @param file source
+     * @return the tree
+     * @throws IOException if the file cannot be read or is not a saved tree
+     */
+    public static MerkleTree load(Path file) throws IOException {
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(file)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("Not a Merkle tree file: " + file);
+            }
+            int leafSize = in.readInt();
+            int leafCount = in.readInt();
+            if (leafSize <= 0 || leafCount <= 0) {
+                throw new IOException("Corrupt Merkle tree header: " + file);
+            }
+
+            MerkleTree tree = new MerkleTree(leafSize, leafCount);
+            for (int level = 0; level < tree.levels.length; level++) {
+                in.readFully(tree.levels[level], 0, tree.counts[level] * HASH_LENGTH);
+            }
+            return tree;
+        }
+    }
+
+    /**
+     * Bring a saved tree up to date after a range of its file has been
+     * rewritten, without loading the whole tree. Nodes are saved level by
+     * level, so the position of every node in the tree file is known: only the
+     * changed leaves, the nodes on their paths to the root and the siblings
+     * those paths need are read, and the changed nodes are written back in
+     * place.
+     *
+     * If the number of leaves changed (the file grew or shrank past a leaf
+     * boundary) every level moves, so the tree is loaded, updated and saved
+     * in full instead.
+     *
+     * @param treeFile tree written by {@link #save(Path)}
+     * @param file     the file the tree was built from
+     * @param offset   first byte that changed
+     * @param length   number of bytes that changed
+     * @return the new root hash
+     * @throws IOException if either file cannot be read or written, or the
+     *                     tree file is not a saved tree
+     */
+    public static byte[] update(Path treeFile, Path file, long offset, long length) throws IOException {
+        if (offset < 0 || length < 0) {
+            throw new IllegalArgumentException("Invalid offset or length parameters");
+        }
+
+        try (FileChannel tree = FileChannel.open(treeFile, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                FileChannel data = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.wrap(read(tree, 0, HEADER_LENGTH));
+            if (header.getInt() != MAGIC) {
+                throw new IOException("Not a Merkle tree file: " + treeFile);
+            }
+            int leafSize = header.getInt();
+            int leafCount = header.getInt();
+            if (leafSize <= 0 || leafCount <= 0) {
+                throw new IOException("Corrupt Merkle tree header: " + treeFile);
+            }
+
+            long size = data.size();
+            if (leafCountFor(size, leafSize) == leafCount) {
+                return updatePath(tree, data, size, leafSize, leafCount, offset, length);
+            }
+        }
+
+        MerkleTree tree = load(treeFile);
+        tree.update(file, offset, length);
+        tree.save(treeFile);
+        return tree.root();
+    }
+
+    // helper functions
+
+    /**
+     * Rehash the leaves covering a changed range and their paths to the root
+     * directly in a saved tree whose leaf count is unchanged.
+     *
+     * @return the root hash
+     */
+    private static byte[] updatePath(FileChannel tree, FileChannel data, long size, int leafSize,
+            int leafCount, long offset, long length) throws IOException {
+        int first = (int) Math.min(offset / leafSize, leafCount - 1);
+        int last = length == 0 ? first : (int) Math.min((offset + length - 1) / leafSize, leafCount - 1);
+
+        // Leaves first..last, straight from the file
+        byte[] nodes = new byte[(last - first + 1) * HASH_LENGTH];
+        ByteBuffer buffer = ByteBuffer.allocate(leafSize);
+        for (int leaf = first; leaf <= last; leaf++) {
+            long position = (long) leaf * leafSize;
+            int n = (int) Math.min(leafSize, size - position);
+            readFully(data, buffer, position, n);
+            hashLeaf(buffer.array(), 0, n, nodes, (leaf - first) * HASH_LENGTH);
+        }
+
+        long levelOffset = HEADER_LENGTH;
+        int count = leafCount;
+        write(tree, levelOffset + (long) first * HASH_LENGTH, nodes);
+
+        while (count > 1) {
+            // The changed nodes plus the siblings at either end of the range
+            int childFirst = first & ~1;
+            int childLast = Math.min(last | 1, count - 1);
+            byte[] children = new byte[(childLast - childFirst + 1) * HASH_LENGTH];
+            System.arraycopy(nodes, 0, children, (first - childFirst) * HASH_LENGTH, nodes.length);
+            if (childFirst < first) {
+                byte[] sibling = read(tree, levelOffset + (long) childFirst * HASH_LENGTH, HASH_LENGTH);
+                System.arraycopy(sibling, 0, children, 0, HASH_LENGTH);
+            }
+            if (childLast > last) {
+                byte[] sibling = read(tree, levelOffset + (long) childLast * HASH_LENGTH, HASH_LENGTH);
+                System.arraycopy(sibling, 0, children, children.length - HASH_LENGTH, HASH_LENGTH);
+            }
+
+            levelOffset += (long) count * HASH_LENGTH;
+            first >>>= 1;
+            last >>>= 1;
+            nodes = new byte[(last - first + 1) * HASH_LENGTH];
+            for (int i = first; i <= last; i++) {
+                int left = 2 * i - childFirst;
+                if (2 * i + 1 < count) {
+                    hashNode(children, left * HASH_LENGTH, nodes, (i - first) * HASH_LENGTH);
+                } else {
+                    // No right sibling: promote the left child unchanged
+                    System.arraycopy(children, left * HASH_LENGTH, nodes, (i - first) * HASH_LENGTH, HASH_LENGTH);
+                }
+            }
+            count = (count + 1) / 2;
+            write(tree, levelOffset + (long) first * HASH_LENGTH, nodes);
+        }
+        return nodes;
+    }
+
+    private static int leafCountFor(long size, int leafSize) {
+        long leaves = Math.max(1, (size + leafSize - 1) / leafSize);
+        if (leaves > Integer.MAX_VALUE / HASH_LENGTH) {
+            throw new IllegalArgumentException("File has too many leaves; use a larger leaf size");
+        }
+        return (int) leaves;
+    }
+
+    /**
+     * Set the number of leaves, keeping the existing hashes. Level arrays grow
+     * by half again when they run out of room so that repeated appends stay
+     * cheap.
+     */
+    private void resize(int leafCount) {
+        int height = 1;
+        for (int n = leafCount; n > 1; n = (n + 1) / 2) {
+            height++;
+        }
+
+        byte[][] newLevels = new byte[height][];
+        int[] newCounts = new int[height];
+        int n = leafCount;
+        for (int level = 0; level < height; level++) {
+            newCounts[level] = n;
+            byte[] old = levels != null && level < levels.length ? levels[level] : null;
+            if (old != null && old.length >= n * HASH_LENGTH) {
+                newLevels[level] = old;
+            } else {
+                int capacity = old == null ? n : Math.max(n, n + n / 2);
+                capacity = Math.min(capacity, Integer.MAX_VALUE / HASH_LENGTH);
+                newLevels[level] = old == null ? new byte[capacity * HASH_LENGTH]
+                        : Arrays.copyOf(old, capacity * HASH_LENGTH);
+            }
+            n = (n + 1) / 2;
+        }
+
+        levels = newLevels;
+        counts = newCounts;
+    }
+
+    /**
+     * Rehash leaves first..last from the file, then every internal node above
+     * them.
+     */
+    private void rehash(FileChannel channel, long size, int first, int last) throws IOException {
+        hashLeaves(channel, size, first, last);
+
+        for (int level = 1; level < levels.length; level++) {
+            first >>>= 1;
+            last >>>= 1;
+            hashLevel(level, first, last);
+        }
+    }
+
+    /**
+     * Read and hash leaves first..last.
+     */
+    private void hashLeaves(FileChannel channel, long size, int first, int last) throws IOException {
+        int tasks = (last - first) / LEAVES_PER_TASK + 1;
+        try {
+            parallelIf(tasks > 1, tasks).forEach(task -> {
+                int from = first + task * LEAVES_PER_TASK;
+                int to = Math.min(last, from + LEAVES_PER_TASK - 1);
+                ByteBuffer buffer = ByteBuffer.allocate(leafSize);
+                for (int leaf = from; leaf <= to; leaf++) {
+                    long position = (long) leaf * leafSize;
+                    int length = (int) Math.min(leafSize, Math.max(0, size - position));
+                    readFully(channel, buffer, position, length);
+                    hashLeaf(buffer.array(), 0, length, levels[0], leaf * HASH_LENGTH);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Recompute nodes first..last of a level from the level below.
+     */
+    private void hashLevel(int level, int first, int last) {
+        byte[] children = levels[level - 1];
+        int childCount = counts[level - 1];
+        byte[] nodes = levels[level];
+        int tasks = (last - first) / NODES_PER_TASK + 1;
+
+        parallelIf(tasks > 1, tasks).forEach(task -> {
+            int from = first + task * NODES_PER_TASK;
+            int to = Math.min(last, from + NODES_PER_TASK - 1);
+            for (int i = from; i <= to; i++) {
+                int left = 2 * i;
+                if (left + 1 < childCount) {
+                    hashNode(children, left * HASH_LENGTH, nodes, i * HASH_LENGTH);
+                } else {
+                    // No right sibling: promote the left child unchanged
+                    System.arraycopy(children, left * HASH_LENGTH, nodes, i * HASH_LENGTH, HASH_LENGTH);
+                }
+            }
+        });
+    }
+
+    private static IntStream parallelIf(boolean parallel, int tasks) {
+        IntStream range = IntStream.range(0, tasks);
+        return parallel ? range.parallel() : range;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position, int length) {
+        buffer.clear().limit(length);
+        long io = SpongeStats.ioStart();
+        try {
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer, position + buffer.position()) < 0) {
+                    throw new IOException("Unexpected end of file at " + position);
+                }
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            SpongeStats.ioDone(io);
+        }
+    }
+
+    private static byte[] read(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        try {
+            readFully(channel, buffer, position, length);
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return buffer.array();
+    }
+
+    private static void write(FileChannel channel, long position, byte[] bytes) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        long io = SpongeStats.ioStart();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer, position + buffer.position());
+        }
+        SpongeStats.ioDone(io);
+    }
+
+    private byte[] node(int level, int index) {
+        return Arrays.copyOfRange(levels[level], index * HASH_LENGTH, (index + 1) * HASH_LENGTH);
+    }
+
+    private static void hashLeaf(byte[] data, int pos, int len, byte[] out, int outPos) {
+        SHA3SHAKE sponge = new SHA3SHAKE();
+        sponge.init(256);
+        sponge.absorb(new byte[] { LEAF_PREFIX });
+        sponge.absorb(data, pos, len);
+        System.arraycopy(sponge.digest(), 0, out, outPos, HASH_LENGTH);
+    }
+
+    private static void hashNode(byte[] children, int pos, byte[] out, int outPos) {
+        SHA3SHAKE sponge = new SHA3SHAKE();
+        sponge.init(256);
+        sponge.absorb(new byte[] { NODE_PREFIX });
+        sponge.absorb(children, pos, 2 * HASH_LENGTH);
+        System.arraycopy(sponge.digest(), 0, out, outPos, HASH_LENGTH);
+    }
+}
@@ -0,0 +1,166 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests for the Merkle tree: inclusion proofs must verify and tampered ones
+ * must not, and both kinds of update must give exactly the tree a fresh build
+ * would.
+ */
+public class MerkleTreeTest {
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        //defaults
+        int iterations = 50;
+        long seed = System.nanoTime();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--iterations":
+                    if (++i < args.length) {
+                        iterations = Integer.parseInt(args[i]);
+                    }
+                    break;
+                case "--seed":
+                    if (++i < args.length) {
+                        seed = Long.parseLong(args[i]);
+                    }
+                    break;
+                case "--help":
+                    System.out.println("Usage: java MerkleTreeTest [--iterations n] [--seed s]\n"
+                        + "--iterations n: number of random edits (default 50)\n"
+                        + "--seed s: seed for the random data (default: time based)");
+                    return;
+            }
+        }
+
+        System.out.println("Merkle Tree Test (seed " + seed + ")\n");
+
+        Random random = new Random(seed);
+        Path dir = Files.createTempDirectory("merkle-test");
+        Path data = dir.resolve("data.bin");
+        Path treeFile = dir.resolve("data.tree");
+        try {
+            // Odd sizes, so the last leaf is partial and some levels promote
+            // a node without a sibling
+            byte[] contents = new byte[37 * 4096 + 1234];
+            random.nextBytes(contents);
+            Files.write(data, contents);
+
+            MerkleTree tree = MerkleTree.build(data);
+            tree.save(treeFile);
+            checkProofs(tree, contents, random);
+
+            for (int i = 0; i < iterations; i++) {
+                // Rewrite a random range in place
+                long offset = random.nextInt(contents.length);
+                int length = (int) Math.min(1 + random.nextInt(3 * 4096), contents.length - offset);
+                byte[] edit = new byte[length];
+                random.nextBytes(edit);
+                System.arraycopy(edit, 0, contents, (int) offset, length);
+                try (RandomAccessFile file = new RandomAccessFile(data.toFile(), "rw")) {
+                    file.seek(offset);
+                    file.write(edit);
+                }
+
+                tree.update(data, offset, length);
+                byte[] root = MerkleTree.update(treeFile, data, offset, length);
+                check("update on edit " + i, tree, root, data, treeFile);
+            }
+
+            // Grow the file past a leaf boundary, which moves every level of
+            // the saved tree
+            long oldLength = contents.length;
+            byte[] tail = new byte[5000];
+            random.nextBytes(tail);
+            Files.write(data, tail, StandardOpenOption.APPEND);
+            tree.update(data, oldLength, tail.length);
+            byte[] root = MerkleTree.update(treeFile, data, oldLength, tail.length);
+            check("update after append", tree, root, data, treeFile);
+
+            contents = Files.readAllBytes(data);
+            checkProofs(tree, contents, random);
+        } finally {
+            Files.deleteIfExists(data);
+            Files.deleteIfExists(treeFile);
+            Files.deleteIfExists(dir);
+        }
+
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Both updated trees must match a fresh build of the file, and the tree
+     * file must be byte for byte what saving the fresh build writes.
+     */
+    private static void check(String name, MerkleTree tree, byte[] root, Path data, Path treeFile)
+            throws IOException {
+        MerkleTree fresh = MerkleTree.build(data);
+        if (!Arrays.equals(fresh.root(), tree.root())) {
+            fail(name + ": in-memory root differs from a fresh build");
+        }
+        if (!Arrays.equals(fresh.root(), root)) {
+            fail(name + ": in-place root differs from a fresh build");
+        }
+        Path expected = Files.createTempFile(treeFile.getParent(), "expected", ".tree");
+        try {
+            fresh.save(expected);
+            if (!Arrays.equals(Files.readAllBytes(expected), Files.readAllBytes(treeFile))) {
+                fail(name + ": tree file differs from a fresh save");
+            }
+        } finally {
+            Files.delete(expected);
+        }
+    }
+
+    /**
+     * Every leaf's proof must verify, and must stop verifying if the leaf, a
+     * sibling or the index changes.
+     */
+    private static void checkProofs(MerkleTree tree, byte[] contents, Random random) {
+        int leafSize = tree.leafSize();
+        int leafCount = tree.leafCount();
+        byte[] root = tree.root();
+        for (int leaf = 0; leaf < leafCount; leaf++) {
+            int from = leaf * leafSize;
+            byte[] leafData = Arrays.copyOfRange(contents, from, Math.min(contents.length, from + leafSize));
+            byte[][] proof = tree.proof(leaf);
+            if (!MerkleTree.verify(root, leaf, leafCount, leafData, proof)) {
+                fail("proof of leaf " + leaf + " does not verify");
+            }
+
+            byte[] tampered = leafData.clone();
+            tampered[random.nextInt(tampered.length)] ^= 1;
+            if (MerkleTree.verify(root, leaf, leafCount, tampered, proof)) {
+                fail("proof of leaf " + leaf + " verifies changed data");
+            }
+            if (proof.length > 0) {
+                byte[][] bad = proof.clone();
+                int k = random.nextInt(bad.length);
+                bad[k] = bad[k].clone();
+                bad[k][0] ^= 1;
+                if (MerkleTree.verify(root, leaf, leafCount, leafData, bad)) {
+                    fail("proof of leaf " + leaf + " verifies with a changed sibling");
+                }
+            }
+            int other = leaf ^ 1;
+            if (other < leafCount && MerkleTree.verify(root, other, leafCount, leafData, proof)) {
+                fail("proof of leaf " + leaf + " verifies at index " + other);
+            }
+        }
+    }
+
+    private static void fail(String message) {
+        failures++;
+        System.out.println(message);
+    }
+}
@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The MultiHasher class computes several SHA-3/SHAKE outputs over the same
+ * data while reading it only once.
+ *
+ * With a single algorithm (or a single core) every chunk is absorbed inline.
+ * Otherwise each algorithm gets its own thread and sponge, and the reader
+ * hands every chunk it reads to all of them. Chunks are shared read-only and
+ * go back to a small pool once every sponge has absorbed them, so memory use
+ * does not depend on the size of the input.
+ */
+public class MultiHasher {
+
+    /**
+     * A hash algorithm together with its output length.
+     */
+    public static class Algorithm {
+        /**
+         * SHA-3 digest bitlength or SHAKE security level.
+         */
+        public final int suffix;
+
+        /**
+         * Whether this is SHAKE (an XOF) rather than SHA-3.
+         */
+        public final boolean xof;
+
+        /**
+         * Output length in bytes.
+         */
+        public final int outputLength;
+
+        private Algorithm(int suffix, boolean xof, int outputLength) {
+            this.suffix = suffix;
+            this.xof = xof;
+            this.outputLength = outputLength;
+        }
+
+        /**
+         * @param suffix one of 224, 256, 384, or 512
+         * @return the SHA-3 algorithm with the given digest bitlength
+         */
+        public static Algorithm sha3(int suffix) {
+            if (suffix != 224 && suffix != 256 && suffix != 384 && suffix != 512) {
+                throw new IllegalArgumentException(
+                        "Invalid suffix. Must be 224, 256, 384, or 512 for SHA-3");
+            }
+            return new Algorithm(suffix, false, suffix / 8);
+        }
+
+        /**
+         * @param suffix       either 128 or 256
+         * @param outputLength output length in bytes; must be greater than zero
+         * @return the SHAKE algorithm with the given security level
+         */
+        public static Algorithm shake(int suffix, int outputLength) {
+            if (suffix != 128 && suffix != 256) {
+                throw new IllegalArgumentException("Invalid suffix. Must be 128 or 256 for SHAKE");
+            }
+            if (outputLength <= 0) {
+                throw new IllegalArgumentException("SHAKE output length must be greater than zero");
+            }
+            return new Algorithm(suffix, true, outputLength);
+        }
+
+        /**
+         * Parse an algorithm name such as "sha3-256", "shake128" or
+         * "shake256:64". The number after the colon is the SHAKE output length
+         * in bytes; without it SHAKE outputs 2 × suffix bits.
+         *
+         * @param spec algorithm name
+         * @return the algorithm
+         */
+        public static Algorithm parse(String spec) {
+            String name = spec.trim().toLowerCase(Locale.ROOT);
+            try {
+                if (name.startsWith("sha3-")) {
+                    return sha3(Integer.parseInt(name.substring(5)));
+                }
+                if (name.startsWith("shake")) {
+                    int colon = name.indexOf(':');
+                    int suffix = Integer.parseInt(colon < 0 ? name.substring(5) : name.substring(5, colon));
+                    int length = colon < 0 ? suffix / 4 : Integer.parseInt(name.substring(colon + 1));
+                    return shake(suffix, length);
+                }
+            } catch (NumberFormatException e) {
+                // fall through to the error below
+            }
+            throw new IllegalArgumentException("Unknown algorithm: \"" + spec
+                    + "\". Expected sha3-<224|256|384|512> or shake<128|256>[:<bytes>]");
+        }
+
+        /**
+         * Parse a comma-separated list of algorithm names.
+         *
+         * @param specs e.g. "sha3-256,sha3-512,shake256:64"
+         * @return the algorithms, in order
+         */
+        public static List<Algorithm> parseList(String specs) {
+            List<Algorithm> algorithms = new ArrayList<>();
+            for (String spec : specs.split(",")) {
+                algorithms.add(parse(spec));
+            }
+            return algorithms;
+        }
+
+        SHA3SHAKE newSponge() {
+            SHA3SHAKE sponge = new SHA3SHAKE();
+            sponge.init(suffix);
+            return sponge;
+        }
+
+        byte[] finish(SHA3SHAKE sponge) {
+            return xof ? sponge.squeeze(outputLength) : sponge.digest();
+        }
+
+        @Override
+        public String toString() {
+            return (xof ? "SHAKE" : "SHA3-") + suffix;
+        }
+    }
+
+    /**
+     * A chunk of input shared by all sponges.
+     */
+    private static class Chunk {
+        final byte[] data;
+        int length;
+        final AtomicInteger pending = new AtomicInteger();
+
+        Chunk(int size) {
+            data = new byte[size];
+        }
+    }
+
+    /**
+     * Size of every read from the input.
+     */
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * Marks the end of the input on every sponge's queue.
+     */
+    private static final Chunk END = new Chunk(0);
+
+    /**
+     * Hash the stream with every algorithm, reading it only once.
+     *
+     * @param in         data to be hashed (not closed by this method)
+     * @param algorithms algorithms to compute
+     * @return one output per algorithm, in the same order
+     * @throws IOException if reading the stream fails
+     */
+    public static byte[][] digest(InputStream in, List<Algorithm> algorithms) throws IOException {
+        if (algorithms.isEmpty()) {
+            throw new IllegalArgumentException("At least one algorithm is required");
+        }
+        if (algorithms.size() == 1 || Runtime.getRuntime().availableProcessors() == 1) {
+            return digestInline(in, algorithms);
+        }
+        return digestParallel(in, algorithms);
+    }
+
+    /**
+     * Absorb every chunk into all sponges on the calling thread.
+     */
+    private static byte[][] digestInline(InputStream in, List<Algorithm> algorithms)
+            throws IOException {
+        SHA3SHAKE[] sponges = new SHA3SHAKE[algorithms.size()];
+        for (int i = 0; i < sponges.length; i++) {
+            sponges[i] = algorithms.get(i).newSponge();
+        }
+
+        byte[] buffer = new byte[CHUNK_SIZE];
+        while (true) {
+            long io = SpongeStats.ioStart();
+            int n = in.readNBytes(buffer, 0, buffer.length);
+            SpongeStats.ioDone(io);
+            if (n == 0) {
+                break;
+            }
+            for (SHA3SHAKE sponge : sponges) {
+                sponge.absorb(buffer, 0, n);
+            }
+        }
+
+        byte[][] outputs = new byte[sponges.length][];
+        for (int i = 0; i < sponges.length; i++) {
+            outputs[i] = algorithms.get(i).finish(sponges[i]);
+        }
+        return outputs;
+    }
+
+    /**
+     * Read on the calling thread and absorb on one thread per algorithm.
+     */
+    private static byte[][] digestParallel(InputStream in, List<Algorithm> algorithms)
+            throws IOException {
+        int count = algorithms.size();
+
+        // Two chunks per sponge lets the reader run ahead of the slowest one
+        BlockingQueue<Chunk> free = new ArrayBlockingQueue<>(2 * count);
+        for (int i = 0; i < 2 * count; i++) {
+            free.add(new Chunk(CHUNK_SIZE));
+        }
+
+        List<BlockingQueue<Chunk>> queues = new ArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        List<Future<byte[]>> results = new ArrayList<>();
+        try {
+            for (Algorithm algorithm : algorithms) {
+                BlockingQueue<Chunk> queue = new ArrayBlockingQueue<>(2 * count + 1);
+                queues.add(queue);
+                results.add(executor.submit(() -> absorbAll(algorithm, queue, free)));
+            }
+
+            try {
+                while (true) {
+                    Chunk chunk = free.take();
+                    long io = SpongeStats.ioStart();
+                    chunk.length = in.readNBytes(chunk.data, 0, chunk.data.length);
+                    SpongeStats.ioDone(io);
+                    if (chunk.length == 0) {
+                        break;
+                    }
+                    chunk.pending.set(count);
+                    for (BlockingQueue<Chunk> queue : queues) {
+                        queue.put(chunk);
+                    }
+                }
+            } finally {
+                // Always let the workers finish, even if reading failed
+                for (BlockingQueue<Chunk> queue : queues) {
+                    queue.add(END);
+                }
+            }
+
+            byte[][] outputs = new byte[count][];
+            for (int i = 0; i < count; i++) {
+                outputs[i] = results.get(i).get();
+            }
+            return outputs;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Hashing failed", e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Absorb chunks from the queue until the end marker, returning each chunk to
+     * the pool once every sponge is done with it.
+     */
+    private static byte[] absorbAll(Algorithm algorithm, BlockingQueue<Chunk> queue,
+            BlockingQueue<Chunk> free) throws InterruptedException {
+        SHA3SHAKE sponge = algorithm.newSponge();
+        RuntimeException failure = null;
+
+        Chunk chunk;
+        while ((chunk = queue.take()) != END) {
+            if (failure == null) {
+                try {
+                    sponge.absorb(chunk.data, 0, chunk.length);
+                } catch (RuntimeException e) {
+                    // Keep draining so the reader never blocks on this queue
+                    failure = e;
+                }
+            }
+            if (chunk.pending.decrementAndGet() == 0) {
+                free.put(chunk);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+        return algorithm.finish(sponge);
+    }
+}
@@ -0,0 +1,414 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * The RecordHasher class computes one SHA-3 digest per record of a record
+ * file, for example every line of a newline-delimited dataset.
+ *
+ * The file is memory-mapped and records are addressed by offset and length
+ * inside the mapping, so no record is ever copied. The file is cut into
+ * segments of whole records that are hashed in parallel, and within a segment
+ * records are hashed in groups: each group has one bare state per record, and
+ * every round absorbs the next block of every unfinished record and then
+ * permutes the whole group with {@link KeccakEngine#permuteAll}. This avoids
+ * creating a sponge and its buffers per record, and lets an engine that
+ * interleaves several states do so.
+ */
+public class RecordHasher {
+
+    /**
+     * How the records are delimited.
+     */
+    public enum Format {
+        /**
+         * Records end with a '\n', which is not part of the record. A last
+         * record without a trailing '\n' is still a record.
+         */
+        NEWLINE,
+
+        /**
+         * Every record is preceded by its length as a 4-byte big-endian
+         * unsigned integer.
+         */
+        U32_PREFIX;
+
+        /**
+         * @param name "newline" or "u32-prefix"
+         * @return the format
+         */
+        public static Format parse(String name) {
+            switch (name.toLowerCase(Locale.ROOT)) {
+                case "newline":
+                    return NEWLINE;
+                case "u32-prefix":
+                    return U32_PREFIX;
+                default:
+                    throw new IllegalArgumentException("Unknown record format: \"" + name
+                            + "\". Must be newline or u32-prefix");
+            }
+        }
+    }
+
+    /**
+     * Records hashed together in one group.
+     */
+    private static final int GROUP_SIZE = 8;
+
+    /**
+     * Approximate number of input bytes per parallel segment.
+     */
+    private static final int SEGMENT_SIZE = 4 * 1024 * 1024;
+
+    /**
+     * Size of the mapped window used to find segment boundaries.
+     */
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private static final byte[] HEX = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+    private RecordHasher() {
+    }
+
+    /**
+     * Hash every record of a file and write the digests in record order, either
+     * as raw bytes back to back or as one lowercase hex digest per line.
+     *
+     * @param input  the record file
+     * @param suffix SHA-3 digest bitlength: one of 224, 256, 384, or 512
+     * @param format how the records are delimited
+     * @param hex    whether to write hex lines instead of raw digests
+     * @param out    receives the digests (not closed by this method)
+     * @return the number of records
+     * @throws IOException if reading the input or writing the output fails, or
+     *                     the input is not a valid record file
+     */
+    public static long hash(Path input, int suffix, Format format, boolean hex, OutputStream out)
+            throws IOException {
+        if (suffix != 224 && suffix != 256 && suffix != 384 && suffix != 512) {
+            throw new IllegalArgumentException(
+                    "Invalid suffix. Must be 224, 256, 384, or 512 for per-record SHA-3");
+        }
+
+        try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+            long[] bounds = segmentBounds(channel, format);
+
+            int threads = Runtime.getRuntime().availableProcessors();
+            int maxInFlight = 2 * threads;
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            ArrayDeque<Future<Segment>> pending = new ArrayDeque<>();
+            long records = 0;
+            try {
+                for (int i = 0; i + 1 < bounds.length; i++) {
+                    long start = bounds[i];
+                    long end = bounds[i + 1];
+                    pending.add(executor.submit(() -> hashSegment(channel, start, end, suffix, format, hex)));
+
+                    while (pending.size() > maxInFlight) {
+                        records += write(await(pending.poll()), out);
+                    }
+                }
+                while (!pending.isEmpty()) {
+                    records += write(await(pending.poll()), out);
+                }
+            } finally {
+                executor.shutdownNow();
+            }
+            return records;
+        }
+    }
+
+    /**
+     * The digests of one segment.
+     */
+    private static class Segment {
+        final byte[] output;
+        final int records;
+
+        Segment(byte[] output, int records) {
+            this.output = output;
+            this.records = records;
+        }
+    }
+
+    private static int write(Segment segment, OutputStream out) throws IOException {
+        long io = SpongeStats.ioStart();
+        out.write(segment.output);
+        SpongeStats.ioDone(io);
+        return segment.records;
+    }
+
+    private static Segment await(Future<Segment> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while hashing records", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException("Record hashing failed", e.getCause());
+        }
+    }
+
+    /**
+     * Map one segment, find its records and hash them.
+     */
+    private static Segment hashSegment(FileChannel channel, long start, long end, int suffix,
+            Format format, boolean hex) throws IOException {
+        MappedByteBuffer data = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+        data.order(ByteOrder.LITTLE_ENDIAN);
+        int size = data.limit();
+
+        // Offsets and lengths of the records inside the mapping
+        int[] offsets = new int[1024];
+        int[] lengths = new int[1024];
+        int count = 0;
+        int pos = 0;
+        while (pos < size) {
+            int offset;
+            int length;
+            if (format == Format.NEWLINE) {
+                offset = pos;
+                while (pos < size && data.get(pos) != '\n') {
+                    pos++;
+                }
+                length = pos - offset;
+                pos++; // skip the newline
+            } else {
+                length = Integer.reverseBytes(data.getInt(pos)); // prefix is big-endian
+                offset = pos + 4;
+                pos = offset + length;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, 2 * count);
+                lengths = Arrays.copyOf(lengths, 2 * count);
+            }
+            offsets[count] = offset;
+            lengths[count] = length;
+            count++;
+        }
+
+        int digestLength = suffix / 8;
+        byte[] digests = new byte[count * digestLength];
+        long hashStart = SpongeStats.enabled ? System.nanoTime() : 0;
+        hashRecords(data, offsets, lengths, count, suffix, digests);
+        if (SpongeStats.enabled) {
+            SpongeStats.HASH_NANOS.add(System.nanoTime() - hashStart);
+            SpongeStats.BYTES_SQUEEZED.add(digests.length);
+        }
+        if (!hex) {
+            return new Segment(digests, count);
+        }
+
+        byte[] lines = new byte[count * (2 * digestLength + 1)];
+        for (int i = 0, j = 0; i < digests.length; i++) {
+            lines[j++] = HEX[(digests[i] >> 4) & 0xF];
+            lines[j++] = HEX[digests[i] & 0xF];
+            if ((i + 1) % digestLength == 0) {
+                lines[j++] = '\n';
+            }
+        }
+        return new Segment(lines, count);
+    }
+
+    /**
+     * Compute the SHA-3 digest of every record, a group of records at a time.
+     *
+     * @param data    little-endian buffer holding the records
+     * @param offsets index of the first byte of every record
+     * @param lengths length of every record
+     * @param count   number of records
+     * @param suffix  SHA-3 digest bitlength
+     * @param out     receives the digests back to back
+     */
+    static void hashRecords(ByteBuffer data, int[] offsets, int[] lengths, int count, int suffix,
+            byte[] out) {
+        KeccakEngine engine = KeccakEngines.selected();
+        int rateBytes = (1600 - 2 * suffix) / 8;
+        int digestLength = suffix / 8;
+
+        long[][] states = new long[GROUP_SIZE][25];
+        long[][] active = new long[GROUP_SIZE][];
+        int[] absorbed = new int[GROUP_SIZE];
+        boolean[] padded = new boolean[GROUP_SIZE];
+        long permutations = 0;
+        long bytes = 0;
+
+        for (int first = 0; first < count; first += GROUP_SIZE) {
+            int group = Math.min(GROUP_SIZE, count - first);
+            for (int r = 0; r < group; r++) {
+                Arrays.fill(states[r], 0L);
+                absorbed[r] = 0;
+                padded[r] = false;
+            }
+
+            while (true) {
+                int n = 0;
+                for (int r = 0; r < group; r++) {
+                    if (padded[r]) {
+                        continue;
+                    }
+                    long[] state = states[r];
+                    int offset = offsets[first + r] + absorbed[r];
+                    int remaining = lengths[first + r] - absorbed[r];
+                    if (remaining >= rateBytes) {
+                        for (int lane = 0; lane < rateBytes / 8; lane++) {
+                            state[lane] ^= data.getLong(offset + 8 * lane);
+                        }
+                        absorbed[r] += rateBytes;
+                    } else {
+                        absorbFinal(data, offset, remaining, state, rateBytes);
+                        padded[r] = true;
+                    }
+                    active[n++] = state;
+                }
+                if (n == 0) {
+                    break;
+                }
+                engine.permuteAll(active, n);
+                permutations += n;
+            }
+
+            for (int r = 0; r < group; r++) {
+                long[] state = states[r];
+                int base = (first + r) * digestLength;
+                for (int i = 0; i < digestLength; i++) {
+                    out[base + i] = (byte) (state[i >> 3] >>> (8 * (i & 7)));
+                }
+                bytes += lengths[first + r];
+            }
+        }
+
+        if (SpongeStats.enabled) {
+            SpongeStats.PERMUTATIONS.add(permutations);
+            SpongeStats.BYTES_ABSORBED.add(bytes);
+        }
+    }
+
+    /**
+     * XOR the last, partial block of a record and the SHA-3 padding into a
+     * state.
+     */
+    private static void absorbFinal(ByteBuffer data, int offset, int remaining, long[] state,
+            int rateBytes) {
+        int lanes = remaining >> 3;
+        for (int lane = 0; lane < lanes; lane++) {
+            state[lane] ^= data.getLong(offset + 8 * lane);
+        }
+        for (int i = lanes << 3; i < remaining; i++) {
+            state[i >> 3] ^= (long) (data.get(offset + i) & 0xFF) << (8 * (i & 7));
+        }
+        state[remaining >> 3] ^= 0x06L << (8 * (remaining & 7));
+        state[(rateBytes - 1) >> 3] ^= 0x80L << (8 * ((rateBytes - 1) & 7));
+    }
+
+    /**
+     * Cut the file into segments of whole records, each roughly
+     * {@link #SEGMENT_SIZE} bytes long.
+     *
+     * @return the segment boundaries, starting with 0 and ending with the file
+     *         size
+     */
+    private static long[] segmentBounds(FileChannel channel, Format format) throws IOException {
+        long size = channel.size();
+        Window window = new Window(channel, size);
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(0L);
+
+        long last = 0;
+        if (format == Format.NEWLINE) {
+            for (long pos = SEGMENT_SIZE; pos < size; pos = last + SEGMENT_SIZE) {
+                // The segment ends just after the first newline at or after pos
+                while (pos < size && window.get(pos) != '\n') {
+                    pos++;
+                }
+                last = Math.min(pos + 1, size);
+                checkSegment(last - bounds.get(bounds.size() - 1));
+                bounds.add(last);
+            }
+        } else {
+            // The length prefixes have to be followed from the start
+            for (long pos = 0; pos < size;) {
+                if (size - pos < 4) {
+                    throw new IOException("Truncated length prefix at offset " + pos);
+                }
+                long length = window.getInt(pos) & 0xFFFFFFFFL;
+                if (size - pos - 4 < length) {
+                    throw new IOException("Truncated record at offset " + pos);
+                }
+                pos += 4 + length;
+                if (pos - last >= SEGMENT_SIZE) {
+                    checkSegment(pos - last);
+                    bounds.add(pos);
+                    last = pos;
+                }
+            }
+        }
+        if (bounds.get(bounds.size() - 1) != size) {
+            checkSegment(size - bounds.get(bounds.size() - 1));
+            bounds.add(size);
+        }
+
+        long[] result = new long[bounds.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = bounds.get(i);
+        }
+        return result;
+    }
+
+    private static void checkSegment(long length) throws IOException {
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException("Records larger than 2 GiB are not supported");
+        }
+    }
+
+    /**
+     * A sliding read-only mapping used to peek at a file while looking for
+     * segment boundaries.
+     */
+    private static class Window {
+        private final FileChannel channel;
+        private final long size;
+        private MappedByteBuffer buffer;
+        private long start = -1;
+
+        Window(FileChannel channel, long size) {
+            this.channel = channel;
+            this.size = size;
+        }
+
+        byte get(long pos) throws IOException {
+            move(pos, 1);
+            return buffer.get((int) (pos - start));
+        }
+
+        int getInt(long pos) throws IOException {
+            move(pos, 4);
+            return buffer.getInt((int) (pos - start));
+        }
+
+        private void move(long pos, int length) throws IOException {
+            if (start < 0 || pos < start || pos + length > start + buffer.limit()) {
+                start = pos;
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, pos, Math.min(WINDOW_SIZE, size - pos));
+            }
+        }
+    }
+}
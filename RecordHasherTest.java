@@ -0,0 +1,184 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Tests for {@link RecordHasher}: every digest must equal
+ * {@link SHA3SHAKE#SHA3} of its record, for every digest length and both
+ * formats, including empty records, records longer than the rate, a last line
+ * without a newline and files spanning several segments. Truncated u32 files
+ * must be rejected.
+ */
+public class RecordHasherTest {
+
+    private static final int[] SUFFIXES = { 224, 256, 384, 512 };
+
+    private static int failures;
+
+    public static void main(String[] args) throws IOException {
+        //defaults
+        long seed = System.nanoTime();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed":
+                    if (++i < args.length) {
+                        seed = Long.parseLong(args[i]);
+                    }
+                    break;
+                case "--help":
+                    System.out.println("Usage: java RecordHasherTest [--seed s]\n"
+                        + "--seed s: seed for the random records (default: time based)");
+                    return;
+            }
+        }
+
+        System.out.println("Record Hasher Test (seed " + seed + ")\n");
+
+        Random random = new Random(seed);
+        Path file = Files.createTempFile("records", ".bin");
+        try {
+            // Lengths around every rate (72 to 144 bytes), the empty record,
+            // and a count that is not a multiple of the group size
+            List<byte[]> records = new ArrayList<>();
+            for (int i = 0; i < 203; i++) {
+                records.add(record(random, i == 0 || i == 101 ? 0 : 1 + random.nextInt(400)));
+            }
+
+            for (int suffix : SUFFIXES) {
+                check("newline, SHA3-" + suffix, file, newlineFile(records, true), records, suffix,
+                        RecordHasher.Format.NEWLINE);
+                check("newline without a final newline, SHA3-" + suffix, file, newlineFile(records, false),
+                        records, suffix, RecordHasher.Format.NEWLINE);
+                check("u32-prefix, SHA3-" + suffix, file, prefixFile(records), records, suffix,
+                        RecordHasher.Format.U32_PREFIX);
+            }
+
+            // An empty line at the end is an empty record, an empty file has
+            // no records
+            List<byte[]> blank = List.of("a".getBytes(StandardCharsets.US_ASCII), new byte[0]);
+            check("trailing empty line", file, "a\n\n".getBytes(StandardCharsets.US_ASCII), blank, 256,
+                    RecordHasher.Format.NEWLINE);
+            check("empty file", file, new byte[0], List.of(), 256, RecordHasher.Format.NEWLINE);
+
+            // Enough records for several segments
+            List<byte[]> many = new ArrayList<>();
+            for (long size = 0; size < 9 << 20;) {
+                byte[] record = record(random, random.nextInt(2000));
+                many.add(record);
+                size += record.length + 4;
+            }
+            check("several segments, newline", file, newlineFile(many, true), many, 256,
+                    RecordHasher.Format.NEWLINE);
+            check("several segments, u32-prefix", file, prefixFile(many), many, 512,
+                    RecordHasher.Format.U32_PREFIX);
+
+            // Truncated prefixes and records
+            byte[] valid = prefixFile(records);
+            for (int cut : new int[] { 2, valid.length - 1 }) {
+                Files.write(file, Arrays.copyOf(valid, cut));
+                try {
+                    RecordHasher.hash(file, 256, RecordHasher.Format.U32_PREFIX, false,
+                            new ByteArrayOutputStream());
+                    fail("u32 file cut to " + cut + " bytes: accepted");
+                } catch (IOException e) {
+                    // expected
+                }
+            }
+
+            try {
+                RecordHasher.hash(file, 128, RecordHasher.Format.NEWLINE, false, new ByteArrayOutputStream());
+                fail("suffix 128: accepted");
+            } catch (IllegalArgumentException e) {
+                // expected
+            }
+        } finally {
+            Files.deleteIfExists(file);
+        }
+
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Hash the file raw and as hex, and compare both with hashing each record
+     * on its own.
+     */
+    private static void check(String name, Path file, byte[] contents, List<byte[]> records, int suffix,
+            RecordHasher.Format format) throws IOException {
+        Files.write(file, contents);
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        StringBuilder expectedHex = new StringBuilder();
+        for (byte[] record : records) {
+            byte[] digest = SHA3SHAKE.SHA3(suffix, record, null);
+            expected.write(digest);
+            for (byte b : digest) {
+                expectedHex.append(String.format("%02x", b));
+            }
+            expectedHex.append('\n');
+        }
+
+        ByteArrayOutputStream raw = new ByteArrayOutputStream();
+        long count = RecordHasher.hash(file, suffix, format, false, raw);
+        if (count != records.size()) {
+            fail(name + ": " + count + " records, expected " + records.size());
+        }
+        if (!Arrays.equals(expected.toByteArray(), raw.toByteArray())) {
+            fail(name + ": raw digests differ from SHA3SHAKE.SHA3");
+        }
+
+        ByteArrayOutputStream hex = new ByteArrayOutputStream();
+        RecordHasher.hash(file, suffix, format, true, hex);
+        if (!expectedHex.toString().equals(hex.toString(StandardCharsets.US_ASCII))) {
+            fail(name + ": hex digests differ from SHA3SHAKE.SHA3");
+        }
+    }
+
+    /**
+     * A random record that contains no newline.
+     */
+    private static byte[] record(Random random, int length) {
+        byte[] record = new byte[length];
+        random.nextBytes(record);
+        for (int i = 0; i < length; i++) {
+            if (record[i] == '\n') {
+                record[i] = 0;
+            }
+        }
+        return record;
+    }
+
+    private static byte[] newlineFile(List<byte[]> records, boolean finalNewline) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < records.size(); i++) {
+            out.writeBytes(records.get(i));
+            if (finalNewline || i < records.size() - 1) {
+                out.write('\n');
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static byte[] prefixFile(List<byte[]> records) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] record : records) {
+            out.writeBytes(ByteBuffer.allocate(4).putInt(record.length).array());
+            out.writeBytes(record);
+        }
+        return out.toByteArray();
+    }
+
+    private static void fail(String message) {
+        failures++;
+        System.out.println(message);
+    }
+}
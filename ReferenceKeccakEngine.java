@@ -0,0 +1,199 @@
+/**
+ * The reference KECCAK-f[1600] engine. Each round applies the five step
+ * mappings θ, ρ, π, χ and ι one after the other on a 5x5 matrix of lanes,
+ * exactly as they are described in FIPS 202.
+ *
+ * This engine favors clarity over speed and serves as the oracle that the
+ * optimized engines are tested against.
+ */
+public class ReferenceKeccakEngine implements KeccakEngine {
+
+    @Override
+    public String name() {
+        return "reference";
+    }
+
+    /**
+     * The state matrix in KECCAK is a 1600-bit (5x5x64) matrix that serves as the
+     * core structure for the algorithm's operations. Lane (x, y) is held at
+     * stateMatrix[x][y]. Every call works on its own matrix, so the engine can
+     * be shared between threads.
+     */
+    @Override
+    public void permute(long[] lanes) {
+        long[][] stateMatrix = new long[5][5];
+        for (int x = 0; x < 5; x++) {
+            for (int y = 0; y < 5; y++) {
+                stateMatrix[x][y] = lanes[x + 5 * y];
+            }
+        }
+
+        for (int round = 0; round < 24; round++) {
+            stateMatrix = executeRound(stateMatrix, round);
+        }
+
+        for (int x = 0; x < 5; x++) {
+            for (int y = 0; y < 5; y++) {
+                lanes[x + 5 * y] = stateMatrix[x][y];
+            }
+        }
+    }
+
+    /**
+     * Create a deep copy of the state matrix.
+     * 
+     * @return a copy of the state matrix
+     */
+    private long[][] stateMatrixCopy(long[][] stateMatrix) {
+        long[][] copy = new long[5][5];
+        for (int i = 0; i < 5; i++) {
+            for (int j = 0; j < 5; j++) {
+                copy[i][j] = stateMatrix[i][j];
+            }
+        }
+        return copy;
+    }
+
+    private long circularLeftShift(long value, int offset) {
+        return (value << offset) | (value >>> (64 - offset));
+    }
+
+    /**
+     * Theta (θ) - Diffusion Step.
+     * 
+     * Functionality: Provides mixing between all bits in the state,
+     * creating diffusion across the rows and columns. It applies a parity check
+     * across columns of the 5x5 matrix of slices in the state.
+     * 
+     * Effect: Ensures that each bit is affected by the bits of every column,
+     * propagating local changes across the entire state.
+     * 
+     * @param stateMatrix 3D matrix of bits
+     */
+    private void stepMapTheta(long[][] stateMatrix) {
+
+        // Step 1: XOR every bit in a column
+        long[] C = new long[5];
+        for (int x = 0; x < 5; x++) {
+            for (int y = 0; y < 5; y++) {
+                C[x] ^= stateMatrix[x][y];
+            }
+        }
+
+        // Step 2: XOR neighboring columns (x-1, z) and (x+1, z-1)
+        long[] D = new long[5];
+        for (int x = 0; x < 5; x++) {
+            long neighborLane1 = C[(x + 4) % 5];
+            long neighborLane2 = circularLeftShift(C[(x + 1) % 5], 1);
+
+            D[x] = neighborLane1 ^ neighborLane2;
+        }
+
+        // Step 3: XOR each bit with resultLaneD
+        for (int x = 0; x < 5; x++) {
+            for (int y = 0; y < 5; y++) {
+                stateMatrix[x][y] ^= D[x];
+            }
+        }
+    }
+
+    /**
+     * Rho (ρ) - Bitwise Rotation.
+     * 
+     * Functionality: Rotates the bits of each lane (individual segments of the
+     * state matrix) by a position-dependent number of steps.
+     * 
+     * Effect: Provides non-linearity by rotating bits in different ways
+     * for each lane.
+     */
+    private void stepMapRho(long[][] stateMatrix) {
+
+        // Step 1: Initialize (x, y) to (1, 0)
+        int x = 1;
+        int y = 0;
+
+        // Step 2: Perform rotation 24 times
+        for (int t = 0; t < 24; t++) {
+            int offset = ((t + 1) * (t + 2)) / 2; // Calculate offset
+
+            // "Rotate" the bits by bitshifting
+            stateMatrix[x][y] = circularLeftShift(stateMatrix[x][y], offset);
+
+            // Update (x, y) as per the given rule
+            int newX = y;
+            int newY = (2 * x + 3 * y) % 5;
+            x = newX;
+            y = newY;
+        }
+    }
+
+    /**
+     * Pi (π) - Transposition (Permutation).
+     * 
+     * Functionality: Rearranges the positions of the bits within the
+     * 3D state matrix.
+     * 
+     * Effect: Ensures that bits are mixed across different lanes.
+     */
+    private long[][] stepMapPi(long[][] stateMatrix) {
+        long[][] newStateMatrix = stateMatrixCopy(stateMatrix);
+
+        for (int x = 0; x < 5; x++) {
+            for (int y = 0; y < 5; y++) {
+                newStateMatrix[x][y] = stateMatrix[(x + 3 * y) % 5][x];
+            }
+        }
+
+        return newStateMatrix;
+    }
+
+    /**
+     * Chi (χ) - Nonlinear Mixing.
+     * 
+     * Functionality: XORs each bit with a combination of other bits in the same
+     * row.
+     * 
+     * Effect: Introduces non-linearity, which is critical for creating a
+     * secure cryptographic transformation that resists linear attacks.
+     */
+    private long[][] stepMapChi(long[][] stateMatrix) {
+
+        long[][] newStateMatrix = stateMatrixCopy(stateMatrix);
+
+        // operation is done BY ROW using the logic gates given in the paper
+        for (int x = 0; x < 5; x++) {
+            for (int y = 0; y < 5; y++) {
+                // A′[x, y, z] = A[x, y, z] ⊕ ((A[(x+1) mod 5, y, z] ⊕ 1) ⋅ A[(x+2) mod 5, y,
+                // z]).
+                newStateMatrix[x][y] = stateMatrix[x][y]
+                        ^ ((stateMatrix[(x + 1) % 5][y] ^ 0xFFFFFFFF) & stateMatrix[(x + 2) % 5][y]);
+            }
+        }
+
+        return newStateMatrix;
+    }
+
+    /**
+     * Iota (ι) - Round Constant Addition.
+     * 
+     * Functionality: Injects a round-dependent constant into the state to
+     * break symmetry and ensure that each round is different.
+     * 
+     * Effect: Ensures that the permutations applied in each round differ,
+     * preventing any symmetry or structure from weakening the hash function.
+     */
+    private void stepMapIota(long[][] stateMatrix, int round) {
+        // adds asymmetric, round specific CONSTANTS to the (0,0) lane
+
+        stateMatrix[0][0] ^= KeccakEngines.ROUND_CONSTANTS[round];
+    }
+
+    private long[][] executeRound(long[][] stateMatrix, int round) {
+        stepMapTheta(stateMatrix);
+        stepMapRho(stateMatrix);
+        stateMatrix = stepMapPi(stateMatrix);
+        stateMatrix = stepMapChi(stateMatrix);
+        stepMapIota(stateMatrix, round);
+        return stateMatrix;
+    }
+}
@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousFileChannel;
+import java.nio.channels.CompletionHandler;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+
+/**
+ * The SHA3Async class hashes without blocking the calling thread.
+ *
+ * {@link #hash(Path, int, Executor)} reads a file with an
+ * {@link AsynchronousFileChannel} and absorbs it on a caller-supplied
+ * executor, overlapping the read of one chunk with the hashing of the
+ * previous one. {@link DigestSubscriber} plugs into any
+ * {@link Flow.Publisher} of ByteBuffers, such as a streaming request body, and
+ * absorbs each buffer as it is published, so whole bodies never need to be
+ * held in memory.
+ */
+public class SHA3Async {
+
+    /**
+     * Size of every read from a file.
+     */
+    private static final int CHUNK_SIZE = 256 * 1024;
+
+    private SHA3Async() {
+    }
+
+    /**
+     * Compute the SHA-3 digest of a file asynchronously.
+     *
+     * @param path     file to be hashed
+     * @param suffix   one of 224, 256, 384, or 512
+     * @param executor runs the hashing; reads complete on the channel's own
+     *                 threads
+     * @return a future completed with the digest, or exceptionally if reading
+     *         fails
+     */
+    public static CompletableFuture<byte[]> hash(Path path, int suffix, Executor executor) {
+        return hash(path, MultiHasher.Algorithm.sha3(suffix), executor);
+    }
+
+    /**
+     * Compute the SHA-3 or SHAKE output of a file asynchronously.
+     *
+     * @param path      file to be hashed
+     * @param algorithm algorithm and output length
+     * @param executor  runs the hashing; reads complete on the channel's own
+     *                  threads
+     * @return a future completed with the output, or exceptionally if reading
+     *         fails
+     */
+    public static CompletableFuture<byte[]> hash(Path path, MultiHasher.Algorithm algorithm,
+            Executor executor) {
+        CompletableFuture<byte[]> result = new CompletableFuture<>();
+        try {
+            AsynchronousFileChannel channel = AsynchronousFileChannel.open(path, StandardOpenOption.READ);
+            new FileHash(channel, algorithm, executor, result).readNext();
+        } catch (IOException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+        return result;
+    }
+
+    /**
+     * Reads a file chunk by chunk into two alternating buffers. While one
+     * buffer is being absorbed on the executor the next chunk is read into the
+     * other, and a buffer is only reused once its absorb has finished.
+     *
+     * Only one read or absorb step touches the fields at a time; each step is
+     * started by the completion of the one before it.
+     */
+    private static class FileHash implements CompletionHandler<Integer, ByteBuffer> {
+        private final AsynchronousFileChannel channel;
+        private final MultiHasher.Algorithm algorithm;
+        private final SHA3SHAKE sponge;
+        private final Executor executor;
+        private final CompletableFuture<byte[]> result;
+        private final ByteBuffer[] buffers = {
+                ByteBuffer.allocate(CHUNK_SIZE), ByteBuffer.allocate(CHUNK_SIZE) };
+
+        private long position;
+        private int turn;
+        private long readStart;
+
+        /**
+         * Completes when the most recently read chunk has been absorbed.
+         */
+        private CompletableFuture<Void> absorbed = CompletableFuture.completedFuture(null);
+
+        FileHash(AsynchronousFileChannel channel, MultiHasher.Algorithm algorithm, Executor executor,
+                CompletableFuture<byte[]> result) {
+            this.channel = channel;
+            this.algorithm = algorithm;
+            this.sponge = algorithm.newSponge();
+            this.executor = executor;
+            this.result = result;
+        }
+
+        void readNext() {
+            if (result.isDone()) {
+                // cancelled by the caller
+                close();
+                return;
+            }
+            ByteBuffer buffer = buffers[turn];
+            buffer.clear();
+            readStart = SpongeStats.ioStart();
+            channel.read(buffer, position, buffer, this);
+        }
+
+        @Override
+        public void completed(Integer n, ByteBuffer buffer) {
+            SpongeStats.ioDone(readStart);
+            if (n < 0) {
+                absorbed.thenApplyAsync(v -> algorithm.finish(sponge), executor)
+                        .whenComplete((output, e) -> {
+                            if (e != null) {
+                                failed(e, buffer);
+                            } else {
+                                close();
+                                result.complete(output);
+                            }
+                        });
+                return;
+            }
+
+            position += n;
+            buffer.flip();
+            CompletableFuture<Void> previous = absorbed;
+            absorbed = previous.thenRunAsync(() -> sponge.absorb(buffer), executor);
+            turn ^= 1;
+
+            // The other buffer is free once the previous chunk is absorbed
+            previous.whenComplete((v, e) -> {
+                if (e != null) {
+                    failed(e, buffer);
+                } else {
+                    readNext();
+                }
+            });
+        }
+
+        @Override
+        public void failed(Throwable e, ByteBuffer buffer) {
+            close();
+            result.completeExceptionally(
+                    e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+        }
+
+        private void close() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // nothing left to read; the result already reflects any failure
+            }
+        }
+    }
+
+    /**
+     * A Flow subscriber that absorbs every published ByteBuffer and completes
+     * {@link #result()} with the digest when the publisher completes.
+     *
+     * Backpressure: at most {@code prefetch} buffers are requested ahead, and
+     * one more is requested each time a buffer has been absorbed. Buffers are
+     * absorbed during onNext, so a publisher may reuse a buffer as soon as
+     * onNext returns. Cancelling the result cancels the subscription.
+     */
+    public static class DigestSubscriber implements Flow.Subscriber<ByteBuffer> {
+
+        /**
+         * Default number of buffers requested ahead.
+         */
+        public static final int DEFAULT_PREFETCH = 8;
+
+        private final MultiHasher.Algorithm algorithm;
+        private final int prefetch;
+        private final CompletableFuture<byte[]> result = new CompletableFuture<>();
+        private SHA3SHAKE sponge;
+        private Flow.Subscription subscription;
+
+        /**
+         * Create a subscriber computing a SHA-3 digest.
+         *
+         * @param suffix one of 224, 256, 384, or 512
+         */
+        public DigestSubscriber(int suffix) {
+            this(MultiHasher.Algorithm.sha3(suffix), DEFAULT_PREFETCH);
+        }
+
+        /**
+         * Create a subscriber computing any SHA-3 or SHAKE output.
+         *
+         * @param algorithm algorithm and output length
+         * @param prefetch  number of buffers requested ahead; must be greater
+         *                  than zero
+         */
+        public DigestSubscriber(MultiHasher.Algorithm algorithm, int prefetch) {
+            if (prefetch <= 0) {
+                throw new IllegalArgumentException("Prefetch must be greater than zero");
+            }
+            this.algorithm = algorithm;
+            this.prefetch = prefetch;
+        }
+
+        /**
+         * @return a future completed with the digest once the publisher
+         *         completes, or exceptionally if it fails
+         */
+        public CompletableFuture<byte[]> result() {
+            return result;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            if (this.subscription != null) {
+                // only one publisher may feed the sponge
+                subscription.cancel();
+                return;
+            }
+            this.subscription = subscription;
+            sponge = algorithm.newSponge();
+            result.whenComplete((output, e) -> {
+                if (result.isCancelled()) {
+                    subscription.cancel();
+                }
+            });
+            subscription.request(prefetch);
+        }
+
+        @Override
+        public void onNext(ByteBuffer item) {
+            if (result.isDone()) {
+                return;
+            }
+            try {
+                sponge.absorb(item);
+            } catch (RuntimeException e) {
+                subscription.cancel();
+                fail(e);
+                return;
+            }
+            subscription.request(1);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            fail(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            if (result.isDone()) {
+                return;
+            }
+            byte[] output;
+            try {
+                output = algorithm.finish(sponge);
+            } catch (RuntimeException e) {
+                fail(e);
+                return;
+            }
+            result.complete(output);
+        }
+
+        private void fail(Throwable throwable) {
+            if (sponge != null) {
+                sponge.wipe();
+            }
+            result.completeExceptionally(throwable);
+        }
+    }
+}
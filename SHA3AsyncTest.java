@@ -0,0 +1,147 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.SubmissionPublisher;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Tests for the asynchronous hashing in {@link SHA3Async}: file hashes and
+ * subscriber digests must equal the synchronous results, and failures must
+ * complete the future exceptionally instead of escaping or hanging.
+ */
+public class SHA3AsyncTest {
+
+    private static int failures;
+
+    public static void main(String[] args) throws Exception {
+        //defaults
+        long seed = System.nanoTime();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--seed":
+                    if (++i < args.length) {
+                        seed = Long.parseLong(args[i]);
+                    }
+                    break;
+                case "--help":
+                    System.out.println("Usage: java SHA3AsyncTest [--seed s]\n"
+                        + "--seed s: seed for the random data (default: time based)");
+                    return;
+            }
+        }
+
+        System.out.println("SHA3Async Test (seed " + seed + ")\n");
+
+        Random random = new Random(seed);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        Path dir = Files.createTempDirectory("async-test");
+        try {
+            // Files around the 256 KiB chunk size, so both buffers are reused
+            int[] sizes = { 0, 1, 135, 256 * 1024 - 1, 256 * 1024, 3 * 256 * 1024 + 5 };
+            for (int size : sizes) {
+                byte[] data = new byte[size];
+                random.nextBytes(data);
+                Path file = dir.resolve("data-" + size);
+                Files.write(file, data);
+
+                byte[] expected = SHA3SHAKE.SHA3(256, data, null);
+                check("hash of " + size + " bytes", expected, await(SHA3Async.hash(file, 256, executor)));
+
+                MultiHasher.Algorithm shake = MultiHasher.Algorithm.shake(128, 100);
+                check("SHAKE128 of " + size + " bytes", SHA3SHAKE.SHAKE(128, data, 100, null),
+                        await(SHA3Async.hash(file, shake, executor)));
+
+                check("subscriber on " + size + " bytes", expected, publish(data, random));
+                Files.delete(file);
+            }
+
+            expectFailure("hash of a missing file",
+                    SHA3Async.hash(dir.resolve("missing"), 256, executor));
+
+            // The publisher fails part way through
+            SHA3Async.DigestSubscriber subscriber = new SHA3Async.DigestSubscriber(256);
+            try (SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>()) {
+                publisher.subscribe(subscriber);
+                publisher.submit(ByteBuffer.wrap(new byte[10]));
+                publisher.closeExceptionally(new IOException("connection reset"));
+            }
+            expectFailure("subscriber after a publisher error", subscriber.result());
+
+            // Completing without ever being subscribed makes finishing fail,
+            // which must end up in the result rather than in the publisher
+            SHA3Async.DigestSubscriber unsubscribed = new SHA3Async.DigestSubscriber(256);
+            try {
+                unsubscribed.onComplete();
+            } catch (RuntimeException e) {
+                fail("onComplete threw " + e);
+            }
+            expectFailure("subscriber that fails to finish", unsubscribed.result());
+        } finally {
+            executor.shutdown();
+            Files.deleteIfExists(dir);
+        }
+
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Publish data in random-sized buffers and return the subscriber's digest.
+     */
+    private static byte[] publish(byte[] data, Random random) throws Exception {
+        SHA3Async.DigestSubscriber subscriber = new SHA3Async.DigestSubscriber(
+                MultiHasher.Algorithm.sha3(256), 1 + random.nextInt(4));
+        try (SubmissionPublisher<ByteBuffer> publisher = new SubmissionPublisher<>()) {
+            publisher.subscribe(subscriber);
+            for (int pos = 0; pos < data.length;) {
+                int n = Math.min(data.length - pos, 1 + random.nextInt(70_000));
+                publisher.submit(ByteBuffer.wrap(data, pos, n));
+                pos += n;
+            }
+        }
+        return await(subscriber.result());
+    }
+
+    private static byte[] await(CompletableFuture<byte[]> future) throws Exception {
+        try {
+            return future.get(30, TimeUnit.SECONDS);
+        } catch (ExecutionException e) {
+            fail("unexpected failure: " + e.getCause());
+            return null;
+        }
+    }
+
+    private static void expectFailure(String name, CompletableFuture<byte[]> future)
+            throws InterruptedException {
+        try {
+            future.get(30, TimeUnit.SECONDS);
+            fail(name + ": completed normally");
+        } catch (ExecutionException e) {
+            // expected
+        } catch (TimeoutException e) {
+            fail(name + ": never completed");
+        }
+    }
+
+    private static void check(String name, byte[] expected, byte[] actual) {
+        if (!Arrays.equals(expected, actual)) {
+            fail(name + ": digest differs");
+        }
+    }
+
+    private static void fail(String message) {
+        failures++;
+        System.out.println(message);
+    }
+}
@@ -1,5 +1,9 @@
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.channels.ScatteringByteChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.Arrays;
 
 /**
  * The SHA3SHAKE class will enable users to securely hash data, extract hash
@@ -9,38 +13,28 @@ import java.nio.ByteOrder;
  * Some functionality is inspired by Markku-Juhani Saarinen's C implementation 
  * of SHA-3 and SHAKE, found here: 
  * https://github.com/mjosaarinen/tiny_sha3/blob/master/sha3.c.
+ * 
+ * The KECCAK-f permutation itself is delegated to a {@link KeccakEngine}. By
+ * default the engine picked by {@link KeccakEngines#selected()} is used.
  */
 public class SHA3SHAKE {
 
-    /**
-     * Array of round constants to be applied to Lane(0, 0), precomputed for each
-     * of the 24 rounds.
-     */
-    private final long[] ROUND_CONSTANTS = new long[] {
-            0x0000000000000001L, 0x0000000000008082L, 0x800000000000808aL,
-            0x8000000080008000L, 0x000000000000808bL, 0x0000000080000001L,
-            0x8000000080008081L, 0x8000000000008009L, 0x000000000000008aL,
-            0x0000000000000088L, 0x0000000080008009L, 0x000000008000000aL,
-            0x000000008000808bL, 0x800000000000008bL, 0x8000000000008089L,
-            0x8000000000008003L, 0x8000000000008002L, 0x8000000000000080L,
-            0x000000000000800aL, 0x800000008000000aL, 0x8000000080008081L,
-            0x8000000000008080L, 0x0000000080000001L, 0x8000000080008008L
-    };
+    // DATA STRUCTURES AND PARAMETERS
 
     /**
-     * The width (i.e. input/output length) of KECCAK.
+     * The engine that applies the KECCAK-f permutation to the state.
      */
-    private final int WIDTH = 1600;
-
-    // DATA STRUCTURES AND PARAMETERS
+    private final KeccakEngine engine;
 
     /**
      * The state matrix in KECCAK is a 1600-bit (5x5x64) matrix that serves as the
      * core structure for the algorithm's operations. It is used to store
      * intermediate values during the absorbing (input) and squeezing (output)
      * phases and undergoes multiple permutations to ensure security.
+     * 
+     * It is stored as 25 lanes of 64 bits, with lane (x, y) at index x + 5y.
      */
-    private long[][] stateMatrix;
+    private long[] state;
 
     /**
      * The rate of a KECCAK-p permutation in bits.
@@ -54,10 +48,24 @@ public class SHA3SHAKE {
     private int d;
 
     /**
-     * Holds all the input data (message, keys, random samples, etc) to be used
-     * later.
+     * Holds the input data (message, keys, random samples, etc) that does not
+     * yet fill a whole block. Full blocks are absorbed into the state as soon
+     * as they are available.
+     */
+    private byte[] block;
+
+    /**
+     * Scratch space for the words drawn by nextBounded, so drawing a value
+     * does not allocate.
      */
-    private byte[] input;
+    private final long[] word = new long[1];
+
+    /**
+     * The number of input bytes currently held in the block buffer while
+     * absorbing, or the number of bytes of the current output block already
+     * handed out while squeezing.
+     */
+    private int blockPos;
 
     /**
      * Whether or not the sponge has been squeezed since it was last initialized.
@@ -75,7 +83,43 @@ public class SHA3SHAKE {
      */
     private boolean initialized = false;
 
+    /**
+     * The number of permutations done by the current absorb, squeeze or digest
+     * call. Only used for instrumentation.
+     */
+    private int permutations;
+
+    /**
+     * When the current call started, if counters are enabled.
+     */
+    private long batchStart;
+
+    /**
+     * Per-thread direct buffers for scattering reads from channels: four
+     * buffers of 64 KiB.
+     */
+    private static final ThreadLocal<ByteBuffer[]> READ_BUFFERS = ThreadLocal.withInitial(() -> {
+        ByteBuffer[] buffers = new ByteBuffer[4];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = ByteBuffer.allocateDirect(64 * 1024);
+        }
+        return buffers;
+    });
+
     public SHA3SHAKE() {
+        this(KeccakEngines.selected());
+    }
+
+    /**
+     * Create a sponge that uses a specific permutation engine.
+     * 
+     * @param engine the KECCAK-f engine
+     */
+    public SHA3SHAKE(KeccakEngine engine) {
+        this.engine = engine;
+        if (SpongeStats.enabled) {
+            SpongeStats.SPONGES_CREATED.increment();
+        }
     }
 
     /**
@@ -88,18 +132,7 @@ public class SHA3SHAKE {
      */
     public void init(int suffix) {
 
-        stateMatrix = new long[][] {
-                { 0x0000000000000000L, 0x0000000000000000L, 0x0000000000000000L, 0x0000000000000000L,
-                        0x0000000000000000L },
-                { 0x0000000000000000L, 0x0000000000000000L, 0x0000000000000000L, 0x0000000000000000L,
-                        0x0000000000000000L },
-                { 0x0000000000000000L, 0x0000000000000000L, 0x0000000000000000L, 0x0000000000000000L,
-                        0x0000000000000000L },
-                { 0x0000000000000000L, 0x0000000000000000L, 0x0000000000000000L, 0x0000000000000000L,
-                        0x0000000000000000L },
-                { 0x0000000000000000L, 0x0000000000000000L, 0x0000000000000000L, 0x0000000000000000L,
-                        0x0000000000000000L }
-        };
+        state = new long[25];
 
         // For SHA-3: capacity = 2 × output length
         // For SHAKE: capacity = 2 × security level
@@ -114,13 +147,48 @@ public class SHA3SHAKE {
         // length
         d = suffix;
 
-        input = new byte[0];
+        block = new byte[blockByteLength()];
+        blockPos = 0;
 
         squeezed = false;
         digested = false;
         initialized = true;
     }
 
+    /**
+     * Create an independent sponge in exactly the same state as this one, for
+     * example to reuse a sponge that has already absorbed a key.
+     *
+     * @return the copy
+     */
+    public SHA3SHAKE copy() {
+        SHA3SHAKE copy = new SHA3SHAKE(engine);
+        if (initialized) {
+            copy.state = state.clone();
+            copy.block = block.clone();
+        }
+        copy.rate = rate;
+        copy.d = d;
+        copy.blockPos = blockPos;
+        copy.squeezed = squeezed;
+        copy.digested = digested;
+        copy.initialized = initialized;
+        return copy;
+    }
+
+    /**
+     * Overwrite the state and any buffered input with zeros. The sponge must be
+     * initialized again before it is used.
+     */
+    public void wipe() {
+        if (initialized) {
+            Arrays.fill(state, 0L);
+            Arrays.fill(block, (byte) 0);
+        }
+        blockPos = 0;
+        initialized = false;
+    }
+
     /*
      * ------------------- Absorbing Phase -------------------
      * 
@@ -156,19 +224,40 @@ public class SHA3SHAKE {
             throw new IllegalStateException("Cannot absorb after squeezing or digesting");
         }
 
-        byte[] temp = new byte[input.length + len];
+        SpongeStats.KeccakBatchEvent event = beginBatch();
+        update(data, pos, len);
+        endBatch(event, "absorb", len, 0);
+    }
+
+    /**
+     * Add data to the block buffer, absorbing every block that fills up.
+     */
+    private void update(byte[] data, int pos, int len) {
+        int blockLength = blockByteLength();
+
+        // Top up a partially filled block first
+        if (blockPos > 0) {
+            int n = Math.min(len, blockLength - blockPos);
+            System.arraycopy(data, pos, block, blockPos, n);
+            blockPos += n;
+            pos += n;
+            len -= n;
 
-        // Copy old data
-        for (int i = 0; i < input.length; i++) {
-            temp[i] = input[i];
+            if (blockPos < blockLength) {
+                return;
+            }
+            absorbBlock(block, 0);
+            blockPos = 0;
         }
 
-        // Append new data
-        for (int i = 0; i < len; i++) {
-            temp[input.length + i] = data[pos + i];
+        // Absorb whole blocks straight from the caller's buffer
+        for (; len >= blockLength; pos += blockLength, len -= blockLength) {
+            absorbBlock(data, pos);
         }
 
-        input = temp;
+        // Keep the remainder until more data arrives or absorbing finishes
+        System.arraycopy(data, pos, block, 0, len);
+        blockPos = len;
     }
 
     /**
@@ -190,6 +279,160 @@ public class SHA3SHAKE {
         absorb(data, 0, data.length);
     }
 
+    /**
+     * Update the SHAKE sponge with the remaining bytes of a buffer. The buffer's
+     * position is advanced to its limit. Direct buffers are read lane by lane
+     * without copying them to the heap first.
+     *
+     * @param data buffer holding the data between its position and limit
+     */
+    public void absorb(ByteBuffer data) {
+        if (data == null) {
+            throw new IllegalArgumentException("Input data cannot be null");
+        }
+        checkAbsorb();
+
+        SpongeStats.KeccakBatchEvent event = beginBatch();
+        int len = data.remaining();
+        update(data);
+        endBatch(event, "absorb", len, 0);
+    }
+
+    /**
+     * Update the SHAKE sponge with several buffers, as if they were one
+     * message. The parts are absorbed in order and blocks run across their
+     * boundaries; nothing is concatenated first. Every buffer's position is
+     * advanced to its limit.
+     *
+     * @param parts buffers holding the data between their position and limit
+     */
+    public void absorb(ByteBuffer... parts) {
+        if (parts == null || Arrays.asList(parts).contains(null)) {
+            throw new IllegalArgumentException("Input data cannot be null");
+        }
+        checkAbsorb();
+
+        SpongeStats.KeccakBatchEvent event = beginBatch();
+        long len = 0;
+        for (ByteBuffer part : parts) {
+            len += part.remaining();
+            update(part);
+        }
+        endBatch(event, "absorb", len, 0);
+    }
+
+    /**
+     * Update the SHAKE sponge with several byte arrays, as if they were one
+     * message, without concatenating them first.
+     *
+     * @param parts the data, in order
+     */
+    public void absorb(byte[][] parts) {
+        if (parts == null || Arrays.asList(parts).contains(null)) {
+            throw new IllegalArgumentException("Input data cannot be null");
+        }
+        checkAbsorb();
+
+        SpongeStats.KeccakBatchEvent event = beginBatch();
+        long len = 0;
+        for (byte[] part : parts) {
+            len += part.length;
+            update(part, 0, part.length);
+        }
+        endBatch(event, "absorb", len, 0);
+    }
+
+    /**
+     * Update the SHAKE sponge with everything left in a channel. Each read
+     * fills several direct buffers at once (a scattering read), and the filled
+     * buffers are absorbed together, so large inputs take few system calls and
+     * are never copied to the heap.
+     *
+     * @param channel channel to read until end of stream (not closed by this
+     *                method); must be blocking, since a non-blocking channel
+     *                would be polled in a busy loop
+     * @return the number of bytes absorbed
+     * @throws IOException if reading fails
+     */
+    public long absorb(ScatteringByteChannel channel) throws IOException {
+        if (channel == null) {
+            throw new IllegalArgumentException("Input channel cannot be null");
+        }
+        if (channel instanceof SelectableChannel && !((SelectableChannel) channel).isBlocking()) {
+            throw new IllegalArgumentException("Input channel must be in blocking mode");
+        }
+        checkAbsorb();
+
+        ByteBuffer[] buffers = READ_BUFFERS.get();
+        long total = 0;
+        while (true) {
+            for (ByteBuffer buffer : buffers) {
+                buffer.clear();
+            }
+            long io = SpongeStats.ioStart();
+            long n = channel.read(buffers);
+            SpongeStats.ioDone(io);
+            if (n < 0) {
+                return total;
+            }
+            for (ByteBuffer buffer : buffers) {
+                buffer.flip();
+            }
+            absorb(buffers);
+            total += n;
+        }
+    }
+
+    private void checkAbsorb() {
+        if (!initialized) {
+            throw new IllegalStateException("Sponge must be initialized before absorbing data");
+        }
+        if (squeezed || digested) {
+            throw new IllegalStateException("Cannot absorb after squeezing or digesting");
+        }
+    }
+
+    /**
+     * Absorb the remaining bytes of a buffer, advancing its position to its
+     * limit.
+     */
+    private void update(ByteBuffer data) {
+        if (data.hasArray()) {
+            update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+            data.position(data.limit());
+            return;
+        }
+
+        int blockLength = blockByteLength();
+
+        // Top up a partially filled block first
+        if (blockPos > 0) {
+            int n = Math.min(data.remaining(), blockLength - blockPos);
+            data.get(block, blockPos, n);
+            blockPos += n;
+            if (blockPos < blockLength) {
+                return;
+            }
+            absorbBlock(block, 0);
+            blockPos = 0;
+        }
+
+        // Whole blocks are XORed into the lanes straight from the buffer
+        ByteBuffer lanes = data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        while (lanes.remaining() >= blockLength) {
+            for (int lane = 0; lane < blockLength / 8; lane++) {
+                state[lane] ^= lanes.getLong();
+            }
+            engine.permute(state);
+            permutations++;
+        }
+
+        int rest = lanes.remaining();
+        lanes.get(block, 0, rest);
+        blockPos = rest;
+        data.position(data.limit());
+    }
+
     /*
      * ------------------- Squeezing Phase -------------------
      * 
@@ -208,36 +451,126 @@ public class SHA3SHAKE {
     /**
      * Squeeze a chunk of hashed bytes from the sponge.
      * Call this method as many times as needed to extract the total desired number
-     * of bytes.
+     * of bytes. Every call continues the output exactly where the previous one
+     * (of any of the squeeze methods) left off.
      *
      * @param out hash value buffer
      * @param len desired number of squeezed bytes
      * @return the val buffer containing the desired hash value
      */
     public byte[] squeeze(byte[] out, int len) {
-        if (!initialized) {
-            throw new IllegalStateException("Sponge must be initialized before a squeeze() call.");
-        }
-        if (digested) {
-            throw new IllegalStateException("Cannot call squeeze() after digest().");
+        SpongeStats.KeccakBatchEvent event = beginSqueeze();
+
+        int blockLength = blockByteLength();
+        for (int i = 0; i < len;) {
+            if (blockPos == blockLength) {
+                nextOutputBlock();
+            }
+            int n = Math.min(len - i, blockLength - blockPos);
+            for (int j = 0; j < n; j++, blockPos++) {
+                out[i++] = (byte) (state[blockPos >>> 3] >>> (8 * (blockPos & 7)));
+            }
         }
 
-        if (!squeezed) {
-            squeezed = true;
+        endBatch(event, "squeeze", 0, len);
+        return out;
+    }
 
-            finishAbsorb((byte) 0x1F, (byte) 0x80);
+    /**
+     * Squeeze 64-bit words from the sponge. Each word is the next 8 output bytes
+     * read in little-endian order, so the output is the same stream that
+     * {@link #squeeze(byte[], int)} would return, without converting the lanes
+     * to bytes and back.
+     *
+     * @param out buffer receiving the words
+     * @param off index of the first word to write
+     * @param len number of words to squeeze
+     */
+    public void squeezeLongs(long[] out, int off, int len) {
+        if (off < 0 || len < 0 || off + len > out.length) {
+            throw new IllegalArgumentException("Invalid off or len parameters");
         }
+        SpongeStats.KeccakBatchEvent event = beginSqueeze();
+        squeezeWords(out, null, off, len);
+        endBatch(event, "squeeze", 0, 8L * len);
+    }
 
-        for (int i = 0; i < len;) {
-            byte[] block = stateMatrixToByteArray(stateMatrix);
-            for (int j = 0; i < len && j < blockByteLength(); i++, j++) {
-                out[i] = block[j];
-            }
+    /**
+     * Squeeze 32-bit words from the sponge. Each word is the next 4 output bytes
+     * read in little-endian order.
+     *
+     * @param out buffer receiving the words
+     * @param off index of the first word to write
+     * @param len number of words to squeeze
+     */
+    public void squeezeInts(int[] out, int off, int len) {
+        if (off < 0 || len < 0 || off + len > out.length) {
+            throw new IllegalArgumentException("Invalid off or len parameters");
+        }
+        SpongeStats.KeccakBatchEvent event = beginSqueeze();
+        squeezeWords(null, out, off, len);
+        endBatch(event, "squeeze", 0, 4L * len);
+    }
 
-            keccakF(block);
+    /**
+     * Squeeze a uniformly distributed value in [0, bound). Words are masked to
+     * the bit length of bound - 1 and rejected until one is below bound, so the
+     * result has no modulo bias. On average fewer than two words are used.
+     *
+     * @param bound exclusive upper bound; must be greater than zero
+     * @return the value
+     */
+    public long nextBounded(long bound) {
+        if (bound <= 0) {
+            throw new IllegalArgumentException("Bound must be greater than zero");
         }
+        SpongeStats.KeccakBatchEvent event = beginSqueeze();
+        long mask = bound == 1 ? 0 : -1L >>> Long.numberOfLeadingZeros(bound - 1);
+        long words = 0;
+        do {
+            squeezeWords(word, null, 0, 1);
+            words++;
+        } while ((word[0] & mask) >= bound);
+        endBatch(event, "squeeze", 0, 8 * words);
+        long value = word[0] & mask;
+        word[0] = 0;
+        return value;
+    }
 
-        return out;
+    /**
+     * Squeeze len words into either longs or ints. Words that sit entirely in
+     * one aligned lane are taken from it directly; a word that starts at an
+     * unaligned position (after squeezing an odd number of bytes) is assembled
+     * byte by byte, across a block boundary if needed.
+     */
+    private void squeezeWords(long[] longs, int[] ints, int off, int len) {
+        int blockLength = blockByteLength();
+        int size = longs != null ? 8 : 4;
+        for (int i = off; i < off + len; i++) {
+            if (blockPos == blockLength) {
+                nextOutputBlock();
+            }
+            long value;
+            if ((blockPos & (size - 1)) == 0) {
+                // blockLength is a multiple of 8, so the word is in this block
+                value = state[blockPos >>> 3] >>> (8 * (blockPos & 7));
+                blockPos += size;
+            } else {
+                value = 0;
+                for (int z = 0; z < size; z++) {
+                    if (blockPos == blockLength) {
+                        nextOutputBlock();
+                    }
+                    value |= ((state[blockPos >>> 3] >>> (8 * (blockPos & 7))) & 0xFF) << (8 * z);
+                    blockPos++;
+                }
+            }
+            if (longs != null) {
+                longs[i] = value;
+            } else {
+                ints[i] = (int) value;
+            }
+        }
     }
 
     /**
@@ -273,18 +606,19 @@ public class SHA3SHAKE {
             throw new IllegalStateException("Cannot call digest() after squeeze().");
         }
 
+        SpongeStats.KeccakBatchEvent event = beginBatch();
+
         if (!digested) {
             digested = true;
 
             finishAbsorb((byte) 0x06, (byte) 0x80);
         }
 
-        byte[] block = stateMatrixToByteArray(stateMatrix);
-
         for (int i = 0; i < d / 8; i++) {
-            out[i] = block[i];
+            out[i] = (byte) (state[i >>> 3] >>> (8 * (i & 7)));
         }
 
+        endBatch(event, "digest", 0, d / 8);
         return out;
     }
 
@@ -300,18 +634,41 @@ public class SHA3SHAKE {
     // helper functions
 
     /**
-     * Create a deep copy of the state matrix.
-     * 
-     * @return a copy of the state matrix
+     * Start instrumenting a sponge call.
+     *
+     * @return the JFR event covering the call, or null if JFR events are off
      */
-    private long[][] stateMatrixCopy() {
-        long[][] copy = new long[5][5];
-        for (int i = 0; i < 5; i++) {
-            for (int j = 0; j < 5; j++) {
-                copy[i][j] = stateMatrix[i][j];
-            }
+    private SpongeStats.KeccakBatchEvent beginBatch() {
+        permutations = 0;
+        if (SpongeStats.enabled) {
+            batchStart = System.nanoTime();
+        }
+        if (!SpongeStats.JFR) {
+            return null;
+        }
+        SpongeStats.KeccakBatchEvent event = new SpongeStats.KeccakBatchEvent();
+        event.begin();
+        return event;
+    }
+
+    /**
+     * Finish instrumenting a sponge call: update the counters and commit the JFR
+     * event if the call did any permutations.
+     */
+    private void endBatch(SpongeStats.KeccakBatchEvent event, String operation, long absorbed,
+            long squeezedBytes) {
+        if (SpongeStats.enabled) {
+            SpongeStats.HASH_NANOS.add(System.nanoTime() - batchStart);
+            SpongeStats.PERMUTATIONS.add(permutations);
+            SpongeStats.BYTES_ABSORBED.add(absorbed);
+            SpongeStats.BYTES_SQUEEZED.add(squeezedBytes);
+        }
+        if (event != null && permutations > 0 && event.shouldCommit()) {
+            event.operation = operation;
+            event.permutations = permutations;
+            event.bytes = absorbed + squeezedBytes;
+            event.commit();
         }
-        return copy;
     }
 
     /**
@@ -329,233 +686,68 @@ public class SHA3SHAKE {
      * Should be called only after all calls to absorb.
      */
     private void finishAbsorb(byte padStart, byte padEnd) {
-        byte[] p = new byte[input.length + (blockByteLength() - (input.length % blockByteLength()))];
-        System.arraycopy(input, 0, p, 0, input.length);
-        p[input.length] ^= padStart;
-        p[p.length - 1] ^= padEnd;
-
-        byte[] s = new byte[WIDTH];
-
-        for (int i = 0; i < p.length; i += blockByteLength()) {
-            for (int j = 0; j < blockByteLength(); j++) {
-                s[j] = (byte) (s[j] ^ p[j + i]);
-            }
-
-            s = keccakF(s);
-        }
-    }
-
-    /**
-     * Flatten a 5x5 matrix of longs into a linear byte array.
-     * 
-     * @param stateMatrix 2D array of longs
-     * @return byte array
-     */
-    private byte[] stateMatrixToByteArray(long[][] stateMatrix) {
-        byte[] byteArray = new byte[200]; // Need 1,600 bits. 8 bits per byte.
-
-        ByteBuffer buffer = ByteBuffer.allocate(Long.BYTES);
-        buffer.order(ByteOrder.LITTLE_ENDIAN);
-
-        int byteArrayIndex = 0;
-        for (int x = 0; x < 5; x++) {
-            for (int y = 0; y < 5; y++) {
-                long lane = stateMatrix[y][x];
-
-                // Reset the buffer's position to zero before putting a new long value
-                buffer.clear();
-                buffer.putLong(lane);
-                buffer.flip(); // Prepare the buffer for reading
-
-                // Copy the bytes from the buffer to the byteArray
-                byte[] destArray = new byte[Long.BYTES];
-                buffer.get(destArray);
-                System.arraycopy(destArray, 0, byteArray, byteArrayIndex, Long.BYTES);
-                byteArrayIndex += Long.BYTES;
-            }
-        }
-
-        return byteArray;
-    }
-
-    /**
-     * Convert a byte array to a state matrix (a 2D array of longs).
-     * 
-     * @param byteArray the array to convert
-     * @return the array in state matrix representation
-     */
-    private long[][] byteArrayToStateMatrix(byte[] byteArray) {
-        long[][] stateMatrix = new long[5][5];
-        ByteBuffer buffer = ByteBuffer.allocate(8);
-        buffer.order(ByteOrder.LITTLE_ENDIAN); // Set to little-endian byte order
-
-        for (int x = 0; x < 5; x++) {
-            for (int y = 0; y < 5; y++) {
-                for (int z = 0; z < 8; z++) {
-                    long nextByte = (long) byteArray[8 * (5 * y + x) + z] << 56;
-                    stateMatrix[x][y] = stateMatrix[x][y] >>> 8 ^ nextByte;
-                }
-            }
+        for (int i = blockPos; i < block.length; i++) {
+            block[i] = 0;
         }
+        block[blockPos] ^= padStart;
+        block[block.length - 1] ^= padEnd;
 
-        return stateMatrix;
-    }
-
-    private long circularLeftShift(long value, int offset) {
-        return (value << offset) | (value >>> (64 - offset));
+        absorbBlock(block, 0);
+        blockPos = 0;
     }
 
     /**
-     * Theta (θ) - Diffusion Step.
-     * 
-     * Functionality: Provides mixing between all bits in the state,
-     * creating diffusion across the rows and columns. It applies a parity check
-     * across columns of the 5x5 matrix of slices in the state.
-     * 
-     * Effect: Ensures that each bit is affected by the bits of every column,
-     * propagating local changes across the entire state.
-     * 
-     * @param stateMatrix 3D matrix of bits
-     * @return 3D matrix of bits
-     */
-    private void stepMapTheta() {
-
-        // Step 1: XOR every bit in a column
-        long[] C = new long[5];
-        for (int x = 0; x < 5; x++) {
-            for (int y = 0; y < 5; y++) {
-                C[x] ^= stateMatrix[x][y];
+     * XOR one block of input into the first r bits of the state and apply the
+     * permutation.
+     *
+     * @param data buffer holding the block
+     * @param pos  index of the first byte of the block
+     */
+    private void absorbBlock(byte[] data, int pos) {
+        // Byte i of the state belongs to lane i / 8, least significant byte first
+        for (int lane = 0; lane < blockByteLength() / 8; lane++) {
+            long value = 0;
+            for (int z = 7; z >= 0; z--) {
+                value = (value << 8) | (data[pos + 8 * lane + z] & 0xFF);
             }
+            state[lane] ^= value;
         }
 
-        // Step 2: XOR neighboring columns (x-1, z) and (x+1, z-1)
-        long[] D = new long[5];
-        for (int x = 0; x < 5; x++) {
-            long neighborLane1 = C[(x + 4) % 5];
-            long neighborLane2 = circularLeftShift(C[(x + 1) % 5], 1);
-
-            D[x] = neighborLane1 ^ neighborLane2;
-        }
-
-        // Step 3: XOR each bit with resultLaneD
-        for (int x = 0; x < 5; x++) {
-            for (int y = 0; y < 5; y++) {
-                stateMatrix[x][y] ^= D[x];
-            }
-        }
+        engine.permute(state);
+        permutations++;
     }
 
     /**
-     * Rho (ρ) - Bitwise Rotation.
-     * 
-     * Functionality: Rotates the bits of each lane (individual segments of the
-     * state matrix) by a position-dependent number of steps.
-     * 
-     * Effect: Provides non-linearity by rotating bits in different ways
-     * for each lane.
+     * Check that the sponge can be squeezed and, on the first call, pad and
+     * absorb the final block.
+     *
+     * @return the JFR event covering the call, or null
      */
-    private void stepMapRho() {
-
-        // Step 1: Initialize (x, y) to (1, 0)
-        int x = 1;
-        int y = 0;
-
-        // Step 2: Perform rotation 24 times
-        for (int t = 0; t < 24; t++) {
-            int offset = ((t + 1) * (t + 2)) / 2; // Calculate offset
-
-            // "Rotate" the bits by bitshifting
-            stateMatrix[x][y] = circularLeftShift(stateMatrix[x][y], offset);
-
-            // Update (x, y) as per the given rule
-            int newX = y;
-            int newY = (2 * x + 3 * y) % 5;
-            x = newX;
-            y = newY;
+    private SpongeStats.KeccakBatchEvent beginSqueeze() {
+        if (!initialized) {
+            throw new IllegalStateException("Sponge must be initialized before a squeeze() call.");
         }
-    }
-
-    /**
-     * Pi (π) - Transposition (Permutation).
-     * 
-     * Functionality: Rearranges the positions of the bits within the
-     * 3D state matrix.
-     * 
-     * Effect: Ensures that bits are mixed across different lanes.
-     */
-    private void stepMapPi() {
-        long[][] newStateMatrix = stateMatrixCopy();
-
-        for (int x = 0; x < 5; x++) {
-            for (int y = 0; y < 5; y++) {
-                newStateMatrix[x][y] = stateMatrix[(x + 3 * y) % 5][x];
-            }
+        if (digested) {
+            throw new IllegalStateException("Cannot call squeeze() after digest().");
         }
 
-        stateMatrix = newStateMatrix;
-    }
-
-    /**
-     * Chi (χ) - Nonlinear Mixing.
-     * 
-     * Functionality: XORs each bit with a combination of other bits in the same
-     * row.
-     * 
-     * Effect: Introduces non-linearity, which is critical for creating a
-     * secure cryptographic transformation that resists linear attacks.
-     */
-    private void stepMapChi() {
+        SpongeStats.KeccakBatchEvent event = beginBatch();
 
-        long[][] newStateMatrix = stateMatrixCopy();
+        if (!squeezed) {
+            squeezed = true;
 
-        // operation is done BY ROW using the logic gates given in the paper
-        for (int x = 0; x < 5; x++) {
-            for (int y = 0; y < 5; y++) {
-                // A′[x, y, z] = A[x, y, z] ⊕ ((A[(x+1) mod 5, y, z] ⊕ 1) ⋅ A[(x+2) mod 5, y,
-                // z]).
-                newStateMatrix[x][y] = stateMatrix[x][y]
-                        ^ ((stateMatrix[(x + 1) % 5][y] ^ 0xFFFFFFFF) & stateMatrix[(x + 2) % 5][y]);
-            }
+            finishAbsorb((byte) 0x1F, (byte) 0x80);
         }
-
-        stateMatrix = newStateMatrix;
+        return event;
     }
 
     /**
-     * Iota (ι) - Round Constant Addition.
-     * 
-     * Functionality: Injects a round-dependent constant into the state to
-     * break symmetry and ensure that each round is different.
-     * 
-     * Effect: Ensures that the permutations applied in each round differ,
-     * preventing any symmetry or structure from weakening the hash function.
+     * Permute the state to make the next block of output available.
      */
-    private void stepMapIota(int round) {
-        // adds asymmetric, round specific CONSTANTS to the (0,0) lane
-
-        stateMatrix[0][0] ^= ROUND_CONSTANTS[round];
-    }
-
-    private void executeRound(int round) {
-        stepMapTheta();
-        stepMapRho();
-        stepMapPi();
-        stepMapChi();
-        stepMapIota(round);
-    }
-
-    private byte[] keccakP(int numRounds, byte[] byteArray) {
-        stateMatrix = byteArrayToStateMatrix(byteArray);
-
-        for (int round = 0; round < numRounds; round++) {
-            executeRound(round);
-        }
-
-        return stateMatrixToByteArray(stateMatrix);
-    }
-
-    private byte[] keccakF(byte[] byteArray) {
-        return keccakP(24, byteArray);
+    private void nextOutputBlock() {
+        engine.permute(state);
+        permutations++;
+        blockPos = 0;
     }
 
     /*
@@ -586,11 +778,9 @@ public class SHA3SHAKE {
                     "Invalid suffix. Must be 224, 256, 384, or 512 for SHA-3");
         }
 
-        SHA3SHAKE sha3 = new SHA3SHAKE();
-
-        sha3.init(suffix);
-
-        sha3.absorb(X);
+        if (X == null) {
+            throw new IllegalArgumentException("Input data cannot be null");
+        }
 
         if (out == null) {
             out = new byte[suffix / 8];
@@ -599,6 +789,18 @@ public class SHA3SHAKE {
                     "Output buffer is too small. Needs at least " + (suffix / 8) + " bytes");
         }
 
+        // Messages shorter than a block take the one-permutation path
+        int rateBytes = (1600 - 2 * suffix) / 8;
+        if (X.length < rateBytes) {
+            return shortMessage(rateBytes, (byte) 0x06, X, out, suffix / 8, "digest");
+        }
+
+        SHA3SHAKE sha3 = new SHA3SHAKE();
+
+        sha3.init(suffix);
+
+        sha3.absorb(X);
+
         return sha3.digest(out);
     }
 
@@ -625,11 +827,9 @@ public class SHA3SHAKE {
                     "Invalid suffix. Must be 128 or 256 for SHAKE");
         }
 
-        SHA3SHAKE shake = new SHA3SHAKE();
-
-        shake.init(suffix);
-
-        shake.absorb(X);
+        if (X == null) {
+            throw new IllegalArgumentException("Input data cannot be null");
+        }
 
         if (out == null) {
             out = new byte[L];
@@ -638,7 +838,98 @@ public class SHA3SHAKE {
                     "Output buffer is too small. Needs at least " + (L) + " bytes");
         }
 
+        // Messages shorter than a block take the one-permutation path
+        int rateBytes = (1600 - 2 * suffix) / 8;
+        if (X.length < rateBytes) {
+            return shortMessage(rateBytes, (byte) 0x1F, X, out, L, "squeeze");
+        }
+
+        SHA3SHAKE shake = new SHA3SHAKE();
+
+        shake.init(suffix);
+
+        shake.absorb(X);
+
         return shake.squeeze(out, L);
     }
 
-}
\ No newline at end of file
+    /**
+     * One-shot kernel for a message shorter than one block. The message and
+     * its padding are loaded straight into the lanes, the state is permuted
+     * once, and only the output bytes are read back from the lanes. No sponge
+     * or block buffer is allocated. Output longer than a block costs one more
+     * permutation per extra block, as with squeeze.
+     *
+     * @param rateBytes block length in bytes
+     * @param pad       domain separation and first padding bits (0x06 for
+     *                  SHA-3, 0x1F for SHAKE)
+     * @param X         message, shorter than rateBytes
+     * @param out       output buffer
+     * @param outLen    number of output bytes
+     * @param operation name of the call, for instrumentation
+     * @return the out buffer
+     */
+    private static byte[] shortMessage(int rateBytes, byte pad, byte[] X, byte[] out, int outLen,
+            String operation) {
+        long start = SpongeStats.enabled ? System.nanoTime() : 0;
+        SpongeStats.KeccakBatchEvent event = null;
+        if (SpongeStats.JFR) {
+            event = new SpongeStats.KeccakBatchEvent();
+            event.begin();
+        }
+
+        long[] lanes = new long[25];
+        int len = X.length;
+
+        // Whole lanes of message, least significant byte first
+        int full = len >>> 3;
+        for (int lane = 0; lane < full; lane++) {
+            int pos = 8 * lane;
+            long value = 0;
+            for (int z = 7; z >= 0; z--) {
+                value = (value << 8) | (X[pos + z] & 0xFF);
+            }
+            lanes[lane] = value;
+        }
+
+        // Trailing bytes, then the padding
+        for (int i = 8 * full; i < len; i++) {
+            lanes[i >>> 3] |= (X[i] & 0xFFL) << (8 * (i & 7));
+        }
+        lanes[len >>> 3] ^= (pad & 0xFFL) << (8 * (len & 7));
+        lanes[(rateBytes - 1) >>> 3] ^= 0x80L << 56;
+
+        KeccakEngine engine = KeccakEngines.selected();
+        engine.permute(lanes);
+        int permutations = 1;
+
+        int offset = 0;
+        while (true) {
+            int n = Math.min(rateBytes, outLen - offset);
+            for (int i = 0; i < n; i++) {
+                out[offset + i] = (byte) (lanes[i >>> 3] >>> (8 * (i & 7)));
+            }
+            offset += n;
+            if (offset == outLen) {
+                break;
+            }
+            engine.permute(lanes);
+            permutations++;
+        }
+
+        if (SpongeStats.enabled) {
+            SpongeStats.HASH_NANOS.add(System.nanoTime() - start);
+            SpongeStats.PERMUTATIONS.add(permutations);
+            SpongeStats.BYTES_ABSORBED.add(len);
+            SpongeStats.BYTES_SQUEEZED.add(outLen);
+        }
+        if (event != null && event.shouldCommit()) {
+            event.operation = operation;
+            event.permutations = permutations;
+            event.bytes = len + outLen;
+            event.commit();
+        }
+        return out;
+    }
+
+}
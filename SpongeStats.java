@@ -0,0 +1,199 @@
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * The SpongeStats class collects process-wide counters for the sponges:
+ * permutations, bytes absorbed and squeezed, sponges created, and time spent
+ * hashing and doing I/O.
+ *
+ * Counters are LongAdders, so threads hashing in parallel don't contend on a
+ * shared cache line. Counting is off by default and every hook starts with a
+ * check of a plain static flag, so a disabled counter costs a load and a
+ * branch.
+ *
+ * Independently of the counters, the sponges and services can emit JFR
+ * events. They are only created when the sha3.jfr property is set at startup,
+ * so a normal run never loads the JFR classes.
+ */
+public class SpongeStats {
+
+    /**
+     * JFR event for a run of KECCAK-f permutations done by one absorb, squeeze
+     * or digest call.
+     */
+    @Name("sha3.KeccakBatch")
+    @Label("KECCAK-f Batch")
+    @Category("SHA-3")
+    @Description("Permutations done by a single sponge call")
+    static class KeccakBatchEvent extends Event {
+        @Label("Operation")
+        String operation;
+
+        @Label("Permutations")
+        long permutations;
+
+        @Label("Bytes")
+        long bytes;
+    }
+
+    /**
+     * JFR event for one command line service.
+     */
+    @Name("sha3.Service")
+    @Label("Service")
+    @Category("SHA-3")
+    @Description("A command line service run by Main")
+    static class ServiceEvent extends Event {
+        @Label("Service")
+        String service;
+    }
+
+    /**
+     * Whether the counters are being updated. Normally set once before any
+     * hashing starts.
+     */
+    static volatile boolean enabled = Boolean.getBoolean("sha3.stats");
+
+    /**
+     * Whether JFR events are created. Read once from the sha3.jfr property;
+     * while it is false, none of the event classes is touched.
+     */
+    static final boolean JFR = Boolean.getBoolean("sha3.jfr");
+
+    static final LongAdder PERMUTATIONS = new LongAdder();
+    static final LongAdder BYTES_ABSORBED = new LongAdder();
+    static final LongAdder BYTES_SQUEEZED = new LongAdder();
+    static final LongAdder SPONGES_CREATED = new LongAdder();
+    static final LongAdder HASH_NANOS = new LongAdder();
+    static final LongAdder IO_NANOS = new LongAdder();
+
+    private SpongeStats() {
+    }
+
+    /**
+     * Start updating the counters.
+     */
+    public static void enable() {
+        enabled = true;
+    }
+
+    /**
+     * @return whether the counters are being updated
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return a timestamp to pass to {@link #ioDone(long)}, or 0 if counting is
+     *         disabled
+     */
+    static long ioStart() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Add the time since {@code start} to the I/O time.
+     *
+     * @param start value returned by {@link #ioStart()}
+     */
+    static void ioDone(long start) {
+        if (enabled) {
+            IO_NANOS.add(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Bytes allocated so far by the calling thread, or -1 if the JVM can't tell.
+     *
+     * @return allocated bytes
+     */
+    static long allocatedBytes() {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        if (threads instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(
+                    Thread.currentThread().getId());
+        }
+        return -1;
+    }
+
+    /**
+     * Summarize the counters as a JSON object.
+     *
+     * @param service        name of the service that ran
+     * @param wallNanos      wall-clock time of the service
+     * @param allocatedBytes bytes allocated by the calling thread during the
+     *                       service, or -1 if unknown
+     * @return the report
+     */
+    static String report(String service, long wallNanos, long allocatedBytes) {
+        long permutations = PERMUTATIONS.sum();
+        long absorbed = BYTES_ABSORBED.sum();
+        long squeezed = BYTES_SQUEEZED.sum();
+        long sponges = SPONGES_CREATED.sum();
+        long hashNanos = HASH_NANOS.sum();
+        long ioNanos = IO_NANOS.sum();
+        double cpuHz = cpuHz();
+
+        StringBuilder json = new StringBuilder("{");
+        field(json, "service", "\"" + service + "\"");
+        field(json, "wallSeconds", wallNanos / 1e9);
+        field(json, "permutations", permutations);
+        field(json, "bytesAbsorbed", absorbed);
+        field(json, "bytesSqueezed", squeezed);
+        field(json, "spongesCreated", sponges);
+        field(json, "throughputMBps", wallNanos > 0 ? (absorbed + squeezed) / 1e6 / (wallNanos / 1e9) : 0);
+        field(json, "hashSeconds", hashNanos / 1e9);
+        field(json, "ioSeconds", ioNanos / 1e9);
+        field(json, "cyclesPerByte", cpuHz > 0 && absorbed + squeezed > 0
+                ? String.format(Locale.ROOT, "%.2f", hashNanos * (cpuHz / 1e9) / (absorbed + squeezed))
+                : "null");
+        field(json, "allocatedBytes", allocatedBytes);
+        field(json, "allocatedBytesPerSponge",
+                allocatedBytes >= 0 && sponges > 0 ? Long.toString(allocatedBytes / sponges) : "null");
+        json.setLength(json.length() - 1);
+        return json.append("}").toString();
+    }
+
+    // helper functions
+
+    private static void field(StringBuilder json, String name, Object value) {
+        json.append('"').append(name).append("\":");
+        json.append(value instanceof Double ? String.format(Locale.ROOT, "%.3f", value) : value);
+        json.append(',');
+    }
+
+    /**
+     * The CPU clock rate used for cycles per byte: the sha3.cpuHz system
+     * property if set, otherwise the first "cpu MHz" entry of /proc/cpuinfo.
+     *
+     * @return clock rate in Hz, or 0 if unknown
+     */
+    private static double cpuHz() {
+        String property = System.getProperty("sha3.cpuHz");
+        if (property != null) {
+            return Double.parseDouble(property);
+        }
+        try {
+            List<String> lines = Files.readAllLines(Path.of("/proc/cpuinfo"));
+            for (String line : lines) {
+                if (line.startsWith("cpu MHz")) {
+                    return Double.parseDouble(line.substring(line.indexOf(':') + 1).trim()) * 1e6;
+                }
+            }
+        } catch (Exception e) {
+            // not available on this platform
+        }
+        return 0;
+    }
+}
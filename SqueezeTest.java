@@ -0,0 +1,138 @@
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Tests that squeezing continues one output stream: any mix of byte, long, int
+ * and bounded squeezes must read exactly the bytes a single large squeeze
+ * returns, whatever alignment and block boundaries the calls fall on.
+ */
+public class SqueezeTest {
+
+    private static int failures;
+
+    public static void main(String[] args) {
+        //defaults
+        int iterations = 500;
+        long seed = System.nanoTime();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--iterations":
+                    if (++i < args.length) {
+                        iterations = Integer.parseInt(args[i]);
+                    }
+                    break;
+                case "--seed":
+                    if (++i < args.length) {
+                        seed = Long.parseLong(args[i]);
+                    }
+                    break;
+                case "--help":
+                    System.out.println("Usage: java SqueezeTest [--iterations n] [--seed s]\n"
+                        + "--iterations n: number of random squeeze sequences (default 500)\n"
+                        + "--seed s: seed for the random data (default: time based)");
+                    return;
+            }
+        }
+
+        System.out.println("Squeeze Test (seed " + seed + ")\n");
+
+        Random random = new Random(seed);
+        for (int i = 0; i < iterations; i++) {
+            int suffix = random.nextBoolean() ? 128 : 256;
+            byte[] message = new byte[random.nextInt(400)];
+            random.nextBytes(message);
+
+            // Several blocks of output, so the calls cross block boundaries
+            // at every alignment
+            int total = 1 + random.nextInt(2000);
+            SHA3SHAKE whole = sponge(suffix, message);
+            ByteBuffer expected = ByteBuffer.wrap(whole.squeeze(total)).order(ByteOrder.LITTLE_ENDIAN);
+
+            SHA3SHAKE parts = sponge(suffix, message);
+            String name = "SHAKE" + suffix + " case " + i;
+            boolean same = true;
+            while (same && expected.hasRemaining()) {
+                same = check(name, parts, expected, random);
+            }
+        }
+
+        // Bounded values of every bit length up to 63 stay in range
+        SHA3SHAKE bounded = sponge(256, new byte[0]);
+        for (int bits = 0; bits < 63; bits++) {
+            long bound = (1L << bits) + random.nextInt(1 << Math.min(bits, 20));
+            long value = bounded.nextBounded(bound);
+            if (value < 0 || value >= bound) {
+                fail("nextBounded(" + bound + ") returned " + value);
+            }
+        }
+
+        System.out.println(failures == 0 ? "PASS" : "FAIL (" + failures + ")");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Take the next piece of output with a randomly chosen squeeze method and
+     * compare it with the same piece of the single squeeze.
+     *
+     * @return whether the piece matched; the case stops at the first mismatch
+     */
+    private static boolean check(String name, SHA3SHAKE sponge, ByteBuffer expected, Random random) {
+        int left = expected.remaining();
+        int method = random.nextInt(4);
+        if (method == 1 && left >= 8) {
+            int len = 1 + random.nextInt(Math.min(left / 8, 40));
+            long[] words = new long[len + 2];
+            sponge.squeezeLongs(words, 1, len);
+            for (int k = 1; k <= len; k++) {
+                if (words[k] != expected.getLong()) {
+                    return fail(name + ": squeezeLongs differs at byte " + (expected.position() - 8));
+                }
+            }
+        } else if (method == 2 && left >= 4) {
+            int len = 1 + random.nextInt(Math.min(left / 4, 60));
+            int[] words = new int[len + 2];
+            sponge.squeezeInts(words, 1, len);
+            for (int k = 1; k <= len; k++) {
+                if (words[k] != expected.getInt()) {
+                    return fail(name + ": squeezeInts differs at byte " + (expected.position() - 4));
+                }
+            }
+        } else if (method == 3 && left >= 8) {
+            // With a power of two bound no word is rejected, so the value is
+            // the next word masked
+            int bits = 1 + random.nextInt(62);
+            long value = sponge.nextBounded(1L << bits);
+            if (value != (expected.getLong() & ((1L << bits) - 1))) {
+                return fail(name + ": nextBounded differs at byte " + (expected.position() - 8));
+            }
+        } else {
+            int len = 1 + random.nextInt(Math.min(left, 300));
+            byte[] bytes = sponge.squeeze(len);
+            byte[] want = new byte[len];
+            int at = expected.position();
+            expected.get(want);
+            if (!Arrays.equals(want, bytes)) {
+                return fail(name + ": squeeze differs at byte " + at);
+            }
+        }
+        return true;
+    }
+
+    private static SHA3SHAKE sponge(int suffix, byte[] message) {
+        SHA3SHAKE sponge = new SHA3SHAKE();
+        sponge.init(suffix);
+        sponge.absorb(message);
+        return sponge;
+    }
+
+    private static boolean fail(String message) {
+        failures++;
+        System.out.println(message);
+        return false;
+    }
+}
@@ -0,0 +1,444 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Runs every NIST test vector file (SHA-3 and SHAKE; short, long, variable
+ * output and Monte Carlo) in parallel and writes the results as JUnit XML.
+ *
+ * Files are parsed one record at a time and every case is hashed as its own
+ * task, so all cores stay busy. Each Monte Carlo file is a single chain of
+ * 100,000 dependent hashes, so it runs as one task that checks every
+ * checkpoint as soon as it is reached.
+ */
+public class VectorRunner {
+
+    /**
+     * The outcome of a single test case.
+     */
+    static class CaseResult {
+        final String name;
+        final String failure;
+        final long nanos;
+
+        CaseResult(String name, String failure, long nanos) {
+            this.name = name;
+            this.failure = failure;
+            this.nanos = nanos;
+        }
+    }
+
+    /**
+     * The outcome of a whole vector file.
+     */
+    static class FileResult {
+        final String name;
+        final List<CaseResult> cases;
+        final long nanos;
+
+        FileResult(String name, List<CaseResult> cases, long nanos) {
+            this.name = name;
+            this.cases = cases;
+            this.nanos = nanos;
+        }
+
+        long failures() {
+            return cases.stream().filter(c -> c.failure != null).count();
+        }
+    }
+
+    /**
+     * A vector file record: the bracketed header values in effect plus the
+     * "Key = value" lines since the previous record.
+     */
+    static class Record {
+        final Map<String, String> header;
+        final Map<String, String> fields;
+
+        Record(Map<String, String> header, Map<String, String> fields) {
+            this.header = header;
+            this.fields = fields;
+        }
+
+        String get(String key) {
+            String value = fields.get(key);
+            return value != null ? value : header.get(key);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        // defaults
+        List<Path> dirs = new ArrayList<>();
+        String xmlPath = "vector_results.xml";
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--dir":
+                    if (++i < args.length) {
+                        dirs.add(Path.of(args[i]));
+                    }
+                    break;
+                case "--junit":
+                    if (++i < args.length) {
+                        xmlPath = args[i];
+                    }
+                    break;
+                case "--threads":
+                    if (++i < args.length) {
+                        threads = Integer.parseInt(args[i]);
+                    }
+                    break;
+                case "--help":
+                    System.out.println("Usage: java VectorRunner [--dir d]... [--junit f] [--threads n]\n"
+                        + "--dir d: directory of .rsp/.txt vector files (default: sha-3bytetestvectors\n"
+                        + "         and shakebytetestvectors)\n"
+                        + "--junit f: where to write the JUnit XML report (default: vector_results.xml)\n"
+                        + "--threads n: number of worker threads (default: one per core)");
+                    return;
+            }
+        }
+        if (dirs.isEmpty()) {
+            dirs.add(Path.of("sha-3bytetestvectors"));
+            dirs.add(Path.of("shakebytetestvectors"));
+        }
+
+        List<Path> files = new ArrayList<>();
+        for (Path dir : dirs) {
+            try (Stream<Path> listing = Files.list(dir)) {
+                listing.filter(p -> p.toString().endsWith(".rsp") || p.toString().endsWith(".txt"))
+                        .sorted()
+                        .forEach(files::add);
+            }
+        }
+
+        // Monte Carlo chains are the longest tasks, so start them first
+        files.sort((a, b) -> Boolean.compare(!isMonte(a), !isMonte(b)));
+
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        List<FileResult> results;
+        try {
+            List<CompletableFuture<FileResult>> pending = new ArrayList<>();
+            for (Path file : files) {
+                pending.add(isMonte(file) ? runMonte(file, executor) : runCases(file, executor));
+            }
+            results = pending.stream().map(CompletableFuture::join).collect(Collectors.toList());
+        } finally {
+            executor.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        writeJUnit(Path.of(xmlPath), results, elapsed);
+
+        long total = 0;
+        long failed = 0;
+        for (FileResult result : results) {
+            total += result.cases.size();
+            failed += result.failures();
+            System.out.printf("%s %-28s %5d/%-5d %8.3fs%n", result.failures() == 0 ? "PASS" : "FAIL",
+                    result.name, result.cases.size() - result.failures(), result.cases.size(),
+                    result.nanos / 1e9);
+            for (CaseResult c : result.cases) {
+                if (c.failure != null) {
+                    System.out.println("    " + c.name + ": " + c.failure);
+                }
+            }
+        }
+
+        System.out.println("\nTest Summary");
+        System.out.println("============");
+        System.out.println("Files: " + results.size());
+        System.out.println("Total Tests: " + total);
+        System.out.println("Passed: " + (total - failed));
+        System.out.println("Failed: " + failed);
+        System.out.printf("Time: %.3fs%n", elapsed / 1e9);
+        System.out.println("JUnit report: " + xmlPath);
+
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+
+    // Short, long and variable-output files
+
+    /**
+     * Parse a file and hash each case on the executor as soon as it is read.
+     * A case that throws, or a file that can't be read, is recorded as a
+     * failure rather than stopping the run.
+     */
+    private static CompletableFuture<FileResult> runCases(Path file, ExecutorService executor) {
+        String name = fileName(file);
+        boolean shake = name.startsWith("SHAKE");
+        int suffix = suffixOf(name);
+
+        List<CompletableFuture<CaseResult>> cases = new ArrayList<>();
+        try {
+            parse(file, record -> cases.add(CompletableFuture.supplyAsync(
+                    () -> runCase(record, shake, suffix), executor)));
+        } catch (IOException | RuntimeException e) {
+            cases.add(CompletableFuture.completedFuture(new CaseResult("parse", "error: " + e, 0)));
+        }
+
+        // Cases of all files share the pool, so a file's time is the time spent
+        // on its own cases rather than the wall time until its last one ran
+        return CompletableFuture.allOf(cases.toArray(new CompletableFuture<?>[0])).thenApply(done -> {
+            List<CaseResult> results = cases.stream().map(CompletableFuture::join).collect(Collectors.toList());
+            return new FileResult(name, results, results.stream().mapToLong(c -> c.nanos).sum());
+        });
+    }
+
+    private static CaseResult runCase(Record record, boolean shake, int suffix) {
+        long start = System.nanoTime();
+        String name = record.get("COUNT") != null ? "COUNT = " + record.get("COUNT") : "Len = " + record.get("Len");
+        try {
+            return new CaseResult(name, check(record, shake, suffix), System.nanoTime() - start);
+        } catch (RuntimeException e) {
+            return new CaseResult(name, "error: " + e, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * @return null if the case passes, otherwise a description of the mismatch
+     */
+    private static String check(Record record, boolean shake, int suffix) {
+        int length = Integer.parseInt(record.get("Len") != null ? record.get("Len") : "-1");
+        String msg = record.get("Msg");
+        byte[] message = VectorTest.hexStringToByteArray(msg, length >= 0 ? length / 8 : msg.length() / 2);
+
+        byte[] output;
+        String expected;
+        if (shake) {
+            int outputLength = Integer.parseInt(record.get("Outputlen")) / 8;
+            output = shake(suffix, message, outputLength);
+            expected = record.get("Output");
+        } else {
+            output = SHA3SHAKE.SHA3(suffix, message, null);
+            expected = record.get("MD");
+        }
+
+        return compare(expected, output);
+    }
+
+    // Monte Carlo files
+
+    /**
+     * Run a Monte Carlo chain as one task, checking each checkpoint as the
+     * parser reaches it.
+     */
+    private static CompletableFuture<FileResult> runMonte(Path file, ExecutorService executor) {
+        String name = fileName(file);
+        boolean shake = name.startsWith("SHAKE");
+        int suffix = suffixOf(name);
+
+        return CompletableFuture.supplyAsync(() -> {
+            long start = System.nanoTime();
+            List<CaseResult> cases = new ArrayList<>();
+            MonteChain chain = new MonteChain(shake, suffix);
+            try {
+                parse(file, record -> {
+                    long caseStart = System.nanoTime();
+                    String failure;
+                    if (chain.broken != null) {
+                        // every later checkpoint depends on the one that failed
+                        failure = "not run: " + chain.broken;
+                    } else {
+                        try {
+                            byte[] checkpoint = chain.next(record);
+                            failure = compare(record.get(shake ? "Output" : "MD"), checkpoint);
+                        } catch (RuntimeException e) {
+                            failure = "error: " + e;
+                            chain.broken = "chain stopped at COUNT = " + record.get("COUNT");
+                        }
+                    }
+                    cases.add(new CaseResult("COUNT = " + record.get("COUNT"), failure,
+                            System.nanoTime() - caseStart));
+                });
+            } catch (IOException | RuntimeException e) {
+                cases.add(new CaseResult("parse", "error: " + e, 0));
+            }
+            return new FileResult(name, cases, System.nanoTime() - start);
+        }, executor);
+    }
+
+    /**
+     * The Monte Carlo procedures from the SHA3VS and SHAKEVS documents: every
+     * checkpoint is the result of 1000 chained hashes starting from the
+     * previous checkpoint.
+     */
+    static class MonteChain {
+        private final boolean shake;
+        private final int suffix;
+        private byte[] output;
+        private int minOutputLength;
+        private int outputRange;
+        private int outputLength;
+
+        /**
+         * Why the chain can't continue, once a checkpoint has thrown.
+         */
+        String broken;
+
+        MonteChain(boolean shake, int suffix) {
+            this.shake = shake;
+            this.suffix = suffix;
+        }
+
+        byte[] next(Record record) {
+            if (output == null) {
+                String seed = record.get(shake ? "Msg" : "Seed");
+                output = VectorTest.hexStringToByteArray(seed, seed.length() / 2);
+                if (shake) {
+                    minOutputLength = Integer.parseInt(record.get("Minimum Output Length (bits)")) / 8;
+                    int maxOutputLength = Integer.parseInt(record.get("Maximum Output Length (bits)")) / 8;
+                    outputRange = maxOutputLength - minOutputLength + 1;
+                    outputLength = maxOutputLength;
+                }
+            }
+
+            for (int i = 0; i < 1000; i++) {
+                if (shake) {
+                    // Each message is the leftmost 128 bits of the previous output
+                    output = VectorRunner.shake(suffix, Arrays.copyOf(output, 16), outputLength);
+                    // ...and its rightmost 16 bits pick the next output length
+                    int rightmost = ((output[output.length - 2] & 0xFF) << 8) | (output[output.length - 1] & 0xFF);
+                    outputLength = minOutputLength + rightmost % outputRange;
+                } else {
+                    output = SHA3SHAKE.SHA3(suffix, output, null);
+                }
+            }
+            return output;
+        }
+    }
+
+    // helper functions
+
+    /**
+     * Stream the records of a vector file to the consumer. A record ends at its
+     * "MD" or "Output" line.
+     */
+    static void parse(Path file, Consumer<Record> consumer) throws IOException {
+        Map<String, String> header = new HashMap<>();
+        Map<String, String> fields = new HashMap<>();
+
+        try (BufferedReader reader = Files.newBufferedReader(file)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+
+                // Skip comments and empty lines
+                if (line.startsWith("#") || line.isEmpty()) {
+                    continue;
+                }
+
+                boolean bracketed = line.startsWith("[") && line.endsWith("]");
+                if (bracketed) {
+                    line = line.substring(1, line.length() - 1);
+                }
+                int eq = line.indexOf('=');
+                if (eq < 0) {
+                    continue;
+                }
+                String key = line.substring(0, eq).trim();
+                String value = line.substring(eq + 1).trim();
+
+                if (bracketed) {
+                    header.put(key, value);
+                } else {
+                    fields.put(key, value);
+                    if (key.equals("MD") || key.equals("Output")) {
+                        consumer.accept(new Record(new HashMap<>(header), fields));
+                        fields = new HashMap<>();
+                    } else if (key.equals("Seed") || (key.equals("Msg") && !fields.containsKey("Outputlen")
+                            && !fields.containsKey("Len"))) {
+                        // Monte Carlo seeds apply to every record that follows
+                        header.put(key, value);
+                        fields.remove(key);
+                    }
+                }
+            }
+        }
+    }
+
+    private static byte[] shake(int suffix, byte[] message, int outputLength) {
+        SHA3SHAKE sponge = new SHA3SHAKE();
+        sponge.init(suffix);
+        sponge.absorb(message);
+        return sponge.squeeze(outputLength);
+    }
+
+    /**
+     * @return null if the output matches, otherwise a description of the
+     *         mismatch
+     */
+    private static String compare(String expected, byte[] output) {
+        if (expected == null) {
+            return "missing expected value";
+        }
+        String actual = VectorTest.bytesToHexString(output);
+        return actual.equals(expected) ? null : "expected " + expected + ", got " + actual;
+    }
+
+    private static boolean isMonte(Path file) {
+        return file.getFileName().toString().contains("Monte");
+    }
+
+    private static String fileName(Path file) {
+        String name = file.getFileName().toString();
+        return name.substring(0, name.lastIndexOf('.'));
+    }
+
+    /**
+     * @return the digest bitlength or security level in a file name such as
+     *         SHA3_256ShortMsg or SHAKE128Monte
+     */
+    private static int suffixOf(String name) {
+        String digits = name.replaceFirst("^(SHA3_|SHAKE)", "").replaceAll("\\D.*$", "");
+        return Integer.parseInt(digits);
+    }
+
+    private static String escape(String text) {
+        return text.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;").replace("\"", "&quot;");
+    }
+
+    private static void writeJUnit(Path path, List<FileResult> results, long elapsed) throws IOException {
+        long total = results.stream().mapToLong(r -> r.cases.size()).sum();
+        long failed = results.stream().mapToLong(FileResult::failures).sum();
+
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(path))) {
+            out.println("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+            out.printf("<testsuites name=\"VectorRunner\" tests=\"%d\" failures=\"%d\" time=\"%.3f\">%n",
+                    total, failed, elapsed / 1e9);
+            for (FileResult result : results) {
+                out.printf("  <testsuite name=\"%s\" tests=\"%d\" failures=\"%d\" errors=\"0\" time=\"%.3f\">%n",
+                        result.name, result.cases.size(), result.failures(), result.nanos / 1e9);
+                for (CaseResult c : result.cases) {
+                    out.printf("    <testcase classname=\"%s\" name=\"%s\" time=\"%.6f\"", result.name, c.name,
+                            c.nanos / 1e9);
+                    if (c.failure == null) {
+                        out.println("/>");
+                    } else {
+                        out.println(">");
+                        out.printf("      <failure message=\"%s\"/>%n", escape(c.failure));
+                        out.println("    </testcase>");
+                    }
+                }
+                out.println("  </testsuite>");
+            }
+            out.println("</testsuites>");
+        }
+    }
+}
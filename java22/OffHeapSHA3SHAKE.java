@@ -0,0 +1,317 @@
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteOrder;
+
+/**
+ * The OffHeapSHA3SHAKE class is a SHA-3/SHAKE sponge whose state lives outside
+ * the Java heap.
+ *
+ * The 200-byte state and the staging buffer for partial blocks are allocated
+ * from an {@link Arena} chosen by the caller, so the arena decides how long
+ * the sponge lives and the garbage collector never has to trace the state.
+ * Input can be absorbed straight from any {@link MemorySegment}, such as a
+ * native network buffer or a mapped file, without first copying it to a heap
+ * array.
+ *
+ * The state is stored in the byte order of FIPS 202: lane (x, y) is the
+ * little-endian long at byte offset 8 * (x + 5y). Squeezed output is therefore
+ * a plain copy of the first bytes of the state.
+ *
+ * Requires Java 22 or later. It is kept in the java22 source root so the rest
+ * of the library still builds on Java 17.
+ */
+public class OffHeapSHA3SHAKE {
+
+    /**
+     * Layout used to read and write lanes.
+     */
+    private static final ValueLayout.OfLong LANE =
+            ValueLayout.JAVA_LONG_UNALIGNED.withOrder(ByteOrder.LITTLE_ENDIAN);
+
+    /**
+     * Size of the state in bytes.
+     */
+    private static final int STATE_BYTES = 200;
+
+    /**
+     * Largest rate of any supported variant (SHAKE128), in bytes.
+     */
+    private static final int MAX_RATE_BYTES = 168;
+
+    /**
+     * Per-thread scratch lanes used while permuting, so sponges don't each need
+     * a heap array.
+     */
+    private static final ThreadLocal<long[]> SCRATCH = ThreadLocal.withInitial(() -> new long[25]);
+
+    /**
+     * The engine that applies the KECCAK-f permutation.
+     */
+    private final KeccakEngine engine;
+
+    /**
+     * The 1600-bit state.
+     */
+    private final MemorySegment state;
+
+    /**
+     * Input that does not yet fill a whole block.
+     */
+    private final MemorySegment staging;
+
+    /**
+     * The rate in bytes.
+     */
+    private int rateBytes;
+
+    /**
+     * The SHA-3 digest length in bits (or the SHAKE security level).
+     */
+    private int d;
+
+    /**
+     * Bytes held in the staging buffer while absorbing, or bytes of the current
+     * block already handed out while squeezing.
+     */
+    private int blockPos;
+
+    private boolean squeezed;
+    private boolean digested;
+    private boolean initialized = false;
+
+    /**
+     * Create a sponge whose state is allocated from the given arena. The sponge
+     * must not be used after the arena is closed.
+     *
+     * @param arena arena that owns the state
+     */
+    public OffHeapSHA3SHAKE(Arena arena) {
+        this(arena, KeccakEngines.selected());
+    }
+
+    /**
+     * Create a sponge whose state is allocated from the given arena and that
+     * uses a specific permutation engine.
+     *
+     * @param arena  arena that owns the state
+     * @param engine the KECCAK-f engine
+     */
+    public OffHeapSHA3SHAKE(Arena arena, KeccakEngine engine) {
+        this.engine = engine;
+        state = arena.allocate(STATE_BYTES, Long.BYTES);
+        staging = arena.allocate(MAX_RATE_BYTES, Long.BYTES);
+    }
+
+    /**
+     * Initialize the SHA-3/SHAKE sponge.
+     * The suffix must be one of 224, 256, 384, or 512 for SHA-3, or one of 128 or
+     * 256 for SHAKE.
+     *
+     * @param suffix SHA-3/SHAKE suffix (SHA-3 digest bitlength = suffix, SHAKE sec
+     *               level = suffix)
+     */
+    public void init(int suffix) {
+        state.fill((byte) 0);
+        rateBytes = (1600 - 2 * suffix) / 8;
+        d = suffix;
+        blockPos = 0;
+        squeezed = false;
+        digested = false;
+        initialized = true;
+    }
+
+    /**
+     * Update the sponge with the contents of a memory segment. Whole blocks are
+     * read directly from the segment.
+     *
+     * @param data segment holding the data (on or off the heap)
+     */
+    public void absorb(MemorySegment data) {
+        if (!initialized) {
+            throw new IllegalStateException("Sponge must be initialized before absorbing data");
+        }
+        if (data == null) {
+            throw new IllegalArgumentException("Input data cannot be null");
+        }
+        if (squeezed || digested) {
+            throw new IllegalStateException("Cannot absorb after squeezing or digesting");
+        }
+
+        long pos = 0;
+        long len = data.byteSize();
+
+        // Top up a partially filled block first
+        if (blockPos > 0) {
+            int n = (int) Math.min(len, rateBytes - blockPos);
+            MemorySegment.copy(data, pos, staging, blockPos, n);
+            blockPos += n;
+            pos += n;
+            len -= n;
+
+            if (blockPos < rateBytes) {
+                return;
+            }
+            absorbBlocks(staging, 0, 1);
+            blockPos = 0;
+        }
+
+        long blocks = len / rateBytes;
+        if (blocks > 0) {
+            absorbBlocks(data, pos, blocks);
+            pos += blocks * rateBytes;
+            len -= blocks * rateBytes;
+        }
+
+        MemorySegment.copy(data, pos, staging, 0, len);
+        blockPos = (int) len;
+    }
+
+    /**
+     * Update the sponge with a byte-oriented data chunk.
+     *
+     * @param data byte-oriented data buffer
+     * @param pos  initial index to hash from
+     * @param len  byte count on the buffer
+     */
+    public void absorb(byte[] data, int pos, int len) {
+        if (data == null) {
+            throw new IllegalArgumentException("Input data cannot be null");
+        }
+        if (pos < 0 || len < 0 || pos + len > data.length) {
+            throw new IllegalArgumentException("Invalid pos or len parameters");
+        }
+        absorb(MemorySegment.ofArray(data).asSlice(pos, len));
+    }
+
+    /**
+     * Squeeze bytes from the sponge into a memory segment, filling it entirely.
+     * Successive calls continue the output stream where the previous call left
+     * off.
+     *
+     * @param out segment receiving the output
+     */
+    public void squeeze(MemorySegment out) {
+        if (!initialized) {
+            throw new IllegalStateException("Sponge must be initialized before a squeeze() call.");
+        }
+        if (digested) {
+            throw new IllegalStateException("Cannot call squeeze() after digest().");
+        }
+
+        if (!squeezed) {
+            squeezed = true;
+            finishAbsorb((byte) 0x1F);
+        }
+
+        long pos = 0;
+        long len = out.byteSize();
+        while (len > 0) {
+            if (blockPos == rateBytes) {
+                permute();
+                blockPos = 0;
+            }
+            int n = (int) Math.min(len, rateBytes - blockPos);
+            MemorySegment.copy(state, blockPos, out, pos, n);
+            blockPos += n;
+            pos += n;
+            len -= n;
+        }
+    }
+
+    /**
+     * Squeeze a chunk of hashed bytes from the sponge.
+     *
+     * @param len desired number of squeezed bytes
+     * @return newly allocated buffer containing the desired hash value
+     */
+    public byte[] squeeze(int len) {
+        byte[] out = new byte[len];
+        squeeze(MemorySegment.ofArray(out));
+        return out;
+    }
+
+    /**
+     * Write the whole SHA-3 digest into a memory segment.
+     *
+     * @param out segment receiving the digest; must hold at least d / 8 bytes
+     */
+    public void digest(MemorySegment out) {
+        if (!initialized) {
+            throw new IllegalStateException("Sponge must be initialized before a digest() call.");
+        }
+        if (squeezed) {
+            throw new IllegalStateException("Cannot call digest() after squeeze().");
+        }
+
+        if (!digested) {
+            digested = true;
+            finishAbsorb((byte) 0x06);
+        }
+
+        MemorySegment.copy(state, 0, out, 0, d / 8);
+    }
+
+    /**
+     * Squeeze a whole SHA-3 digest of hashed bytes from the sponge.
+     *
+     * @return the desired hash value on a newly allocated byte array
+     */
+    public byte[] digest() {
+        byte[] out = new byte[d / 8];
+        digest(MemorySegment.ofArray(out));
+        return out;
+    }
+
+    // helper functions
+
+    /**
+     * Pad the staged input, absorb the final block and leave the sponge ready
+     * to hand out the first block of output.
+     */
+    private void finishAbsorb(byte padStart) {
+        staging.asSlice(blockPos, rateBytes - blockPos).fill((byte) 0);
+        staging.set(ValueLayout.JAVA_BYTE, blockPos, padStart);
+        byte last = staging.get(ValueLayout.JAVA_BYTE, rateBytes - 1);
+        staging.set(ValueLayout.JAVA_BYTE, rateBytes - 1, (byte) (last ^ 0x80));
+
+        absorbBlocks(staging, 0, 1);
+        blockPos = 0;
+    }
+
+    /**
+     * XOR consecutive blocks from a segment into the state, permuting after
+     * each one. The state is loaded once and stored once for the whole run.
+     */
+    private void absorbBlocks(MemorySegment data, long pos, long blocks) {
+        long[] a = SCRATCH.get();
+        load(a);
+        int rateLanes = rateBytes / 8;
+        for (long b = 0; b < blocks; b++, pos += rateBytes) {
+            for (int i = 0; i < rateLanes; i++) {
+                a[i] ^= data.get(LANE, pos + 8L * i);
+            }
+            engine.permute(a);
+        }
+        store(a);
+    }
+
+    private void permute() {
+        long[] a = SCRATCH.get();
+        load(a);
+        engine.permute(a);
+        store(a);
+    }
+
+    private void load(long[] a) {
+        for (int i = 0; i < 25; i++) {
+            a[i] = state.get(LANE, 8L * i);
+        }
+    }
+
+    private void store(long[] a) {
+        for (int i = 0; i < 25; i++) {
+            state.set(LANE, 8L * i, a[i]);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Differential test for the off-heap sponge: for every SHA-3/SHAKE variant it
+ * must produce exactly the output of {@link SHA3SHAKE}, whether the input comes
+ * from heap arrays or native segments and however it is split between calls.
+ *
+ * Build and run from the repository root with Java 22 or later:
+ *
+ * <pre>
+ * javac -d out *.java java22/*.java
+ * java -cp out OffHeapSHA3SHAKETest
+ * </pre>
+ */
+public class OffHeapSHA3SHAKETest {
+
+    public static void main(String[] args) {
+        //defaults
+        int iterations = 1000;
+        long seed = System.nanoTime();
+
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--iterations":
+                    if (++i < args.length) {
+                        iterations = Integer.parseInt(args[i]);
+                    }
+                    break;
+                case "--seed":
+                    if (++i < args.length) {
+                        seed = Long.parseLong(args[i]);
+                    }
+                    break;
+                case "--help":
+                    System.out.println("Usage: java OffHeapSHA3SHAKETest [--iterations n] [--seed s]\n"
+                        + "--iterations n: number of random cases (default 1000)\n"
+                        + "--seed s: seed for the random cases (default: time based)");
+                    return;
+            }
+        }
+
+        System.out.println("Off-Heap Sponge Differential Test (seed " + seed + ")\n");
+
+        Random random = new Random(seed);
+        int[] suffixes = { 224, 256, 384, 512, 128, 256 };
+        int failed = 0;
+
+        try (Arena arena = Arena.ofConfined()) {
+            for (int i = 0; i < iterations; i++) {
+                int which = random.nextInt(suffixes.length);
+                boolean shake = which >= 4;
+                byte[] message = new byte[random.nextInt(600)];
+                random.nextBytes(message);
+                int split = message.length == 0 ? 0 : random.nextInt(message.length);
+                int outputLength = 1 + random.nextInt(400);
+
+                SHA3SHAKE expected = new SHA3SHAKE();
+                expected.init(suffixes[which]);
+                expected.absorb(message);
+                byte[] oracle = shake ? expected.squeeze(outputLength) : expected.digest();
+
+                // First part from a heap array, the rest from a native segment
+                OffHeapSHA3SHAKE sponge = new OffHeapSHA3SHAKE(arena);
+                sponge.init(suffixes[which]);
+                sponge.absorb(message, 0, split);
+                MemorySegment rest = arena.allocate(Math.max(1, message.length - split));
+                MemorySegment.copy(MemorySegment.ofArray(message), split, rest, 0, message.length - split);
+                sponge.absorb(rest.asSlice(0, message.length - split));
+
+                byte[] actual;
+                if (shake) {
+                    // Squeezed in two calls, which must continue one stream
+                    int first = random.nextInt(outputLength + 1);
+                    actual = new byte[outputLength];
+                    System.arraycopy(sponge.squeeze(first), 0, actual, 0, first);
+                    System.arraycopy(sponge.squeeze(outputLength - first), 0, actual, first,
+                            outputLength - first);
+                } else {
+                    actual = sponge.digest();
+                }
+
+                if (!Arrays.equals(oracle, actual)) {
+                    failed++;
+                    System.out.println((shake ? "SHAKE" : "SHA3-") + suffixes[which] + " differs on a "
+                            + message.length + " byte message (case " + i + ")");
+                }
+            }
+        }
+
+        System.out.println(failed == 0 ? "PASS" : "FAIL (" + failed + ")");
+        if (failed > 0) {
+            System.exit(1);
+        }
+    }
+}